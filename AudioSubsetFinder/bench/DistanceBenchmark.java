@@ -0,0 +1,193 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Class DistanceBenchmark compares the scalar and the Vector API
+ * distance kernels on a set of audio files: for every kernel it
+ * reports the time spent matching every pair of files, the time spent
+ * summing the errors of every whole window without stopping early, and
+ * how many pairs give the same MATCH line as the scalar kernel.
+ *
+ * Build and run from the AudioSubsetFinder folder :
+ *
+ * <pre>
+ * mkdir -p bench/classes
+ * javac --add-modules jdk.incubator.vector -d bench/classes \
+ *     src/*.java src/simd/*.java bench/*.java
+ * java --add-modules jdk.incubator.vector -cp bench/classes \
+ *     DistanceBenchmark test/mp3
+ * </pre>
+ *
+ * Without the module only the scalar kernel is measured.
+ */
+public class DistanceBenchmark {
+
+  /** The number of timed runs per kernel. */
+  private static final int RUNS = 5;
+
+  /** The values summed per call, 8 rows of 27 ranges. */
+  private static final int BLOCK_LENGTH = 216;
+
+  /** The total of the window sums, so that none is optimized away. */
+  private static double sink;
+
+  /**
+   * The main method.
+   *
+   * @param args: the audio files or directories to benchmark
+   * @throws Exception the exception
+   */
+  public static void main(String[] args) throws Exception {
+    List<int[][]> fingerPrints = new ArrayList<int[][]>();
+    FingerPrintWav fingerPrintWav = new FingerPrintWav();
+    for (String arg : args) {
+      File file = new File(arg);
+      File[] files =
+          file.isDirectory() ? file.listFiles() : new File[] {file};
+      for (File aFile : files) {
+        WavFile wav = open(aFile);
+        if (wav == null) continue;
+        try {
+          int[][] fingerPrint =
+              fingerPrintWav.fingerPrintChannels(wav)[0];
+          if (fingerPrint.length > 0) fingerPrints.add(fingerPrint);
+        } finally {
+          wav.close();
+        }
+      }
+    }
+    System.out.println(fingerPrints.size() + " fingerprints, "
+        + fingerPrints.size() * fingerPrints.size() + " pairs");
+    System.out.println("kernel match(ms) windows(ms) same");
+    String[] scalarMatches = null;
+    for (boolean simd : new boolean[] {false, true}) {
+      System.setProperty(Constants.SIMD_SETTING, "" + simd);
+      DistanceKernel kernel = DistanceKernel.forSettings();
+      if (simd && kernel.getClass() == DistanceKernel.class) break;
+      FingerPrintWav matcher = new FingerPrintWav();
+      String[] matches = null;
+      long matchTime = 0;
+      long windowTime = 0;
+      // the first run warms up the JIT and is not timed
+      for (int run = 0; run <= RUNS; run++) {
+        long start = System.nanoTime();
+        matches = match(matcher, fingerPrints);
+        long matched = System.nanoTime();
+        sink += sumWindows(kernel, fingerPrints);
+        if (run == 0) continue;
+        matchTime += matched - start;
+        windowTime += System.nanoTime() - matched;
+      }
+      if (scalarMatches == null) scalarMatches = matches;
+      int same = 0;
+      for (int i = 0; i < matches.length; i++) {
+        String expected = scalarMatches[i];
+        if (expected == null ? matches[i] == null : expected
+            .equals(matches[i])) same++;
+      }
+      System.out.println(kernel.getName() + Constants.SPACE
+          + String.format("%.2f", matchTime / RUNS / 1e6)
+          + Constants.SPACE
+          + String.format("%.2f", windowTime / RUNS / 1e6)
+          + Constants.SPACE + same);
+    }
+  }
+
+  /**
+   * Opens a wav file, or decodes an mp3 file.
+   *
+   * @param file the audio file
+   * @return the wav file, null if the file is not audio
+   * @throws Exception the exception
+   */
+  private static WavFile open(File file) throws Exception {
+    byte[] header = new byte[12];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      if (in.read(header) < header.length) return null;
+    } finally {
+      in.close();
+    }
+    if (AudioFileTypeValidator.isWav(header)) return WavFile.open(file);
+    if (AudioFileTypeValidator.isMp3Signature1(header)
+        || AudioFileTypeValidator.isMp3Signature2(header)) {
+      return WavFile.pipe(new Mp3Decoder().decode(file));
+    }
+    return null;
+  }
+
+  /**
+   * Matches every pair of fingerprints.
+   *
+   * @param matcher the matcher
+   * @param fingerPrints the fingerprints
+   * @return the MATCH line of every pair, null if none
+   */
+  private static String[] match(FingerPrintWav matcher,
+      List<int[][]> fingerPrints) {
+    String[] matches =
+        new String[fingerPrints.size() * fingerPrints.size()];
+    int pair = 0;
+    for (int[][] one : fingerPrints) {
+      for (int[][] two : fingerPrints) {
+        matches[pair++] = matcher.getMatch(one, two, "a", "b");
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Sums the errors of every whole window of every pair, the work of
+   * the slow path when no window is stopped early.
+   *
+   * @param kernel the kernel
+   * @param fingerPrints the fingerprints
+   * @return the total of the sums
+   */
+  private static double sumWindows(DistanceKernel kernel,
+      List<int[][]> fingerPrints) {
+    double[] weights = new double[BLOCK_LENGTH];
+    for (int i = 0; i < BLOCK_LENGTH; i++) {
+      weights[i] = 1.0 / (1 + i % 27);
+    }
+    double total = 0.0;
+    for (int[][] one : fingerPrints) {
+      int[] longer = flatten(one);
+      for (int[][] two : fingerPrints) {
+        if (two.length > one.length) continue;
+        int[] shorter = flatten(two);
+        int rowLength = one[0].length;
+        for (int offset = 0; offset + shorter.length <= longer.length;
+            offset += rowLength) {
+          double sum = 0.0;
+          for (int from = 0; from < shorter.length;
+              from += BLOCK_LENGTH) {
+            sum =
+                kernel.getSquaredError(longer, offset + from, shorter,
+                    from, weights,
+                    Math.min(BLOCK_LENGTH, shorter.length - from), sum);
+          }
+          total += sum;
+        }
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Flattens a fingerprint row after row.
+   *
+   * @param fingerPrint the fingerprint
+   * @return the values
+   */
+  private static int[] flatten(int[][] fingerPrint) {
+    int[] values = new int[fingerPrint.length * fingerPrint[0].length];
+    for (int row = 0; row < fingerPrint.length; row++) {
+      System.arraycopy(fingerPrint[row], 0, values, row
+          * fingerPrint[0].length, fingerPrint[0].length);
+    }
+    return values;
+  }
+}
@@ -0,0 +1,240 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Class FingerPrintBenchmark compares the fingerprint path with and
+ * without decimation on a set of audio files: it reports the time
+ * spent per file, how many fingerprint values stay the same and, for
+ * every pair of files, whether the MATCH line stays the same.
+ *
+ * Decimation only applies to the pow2 frame policy, which both runs
+ * use. Wav files are mapped for every run, mp3 files are decoded in
+ * the JVM once, before timing.
+ *
+ * Build and run from the AudioSubsetFinder folder :
+ *
+ * <pre>
+ * mkdir -p bench/classes
+ * javac -d bench/classes src/*.java bench/*.java
+ * java -cp bench/classes FingerPrintBenchmark test/mp3 \
+ *     test/cuttedWavToMP3
+ * </pre>
+ */
+public class FingerPrintBenchmark {
+
+  /** The number of timed runs per file and mode. */
+  private static final int RUNS = 3;
+
+  /** The tolerance in Hz of a fingerprint value. */
+  private static final int TOLERANCE = 2;
+
+  /** The length of the buffer copying decoded samples. */
+  private static final int BUFFER_LENGTH = 65536;
+
+  /**
+   * The main method.
+   *
+   * @param args: the audio files or directories to benchmark
+   * @throws Exception the exception
+   */
+  public static void main(String[] args) throws Exception {
+    List<File> files = new ArrayList<File>();
+    for (String arg : args) {
+      File file = new File(arg);
+      if (file.isDirectory()) {
+        File[] children = file.listFiles();
+        Arrays.sort(children);
+        for (File aFile : children) {
+          files.add(aFile);
+        }
+      } else {
+        files.add(file);
+      }
+    }
+    System.setProperty(Constants.FRAME_POLICY_SETTING,
+        FramePolicy.POWER_OF_TWO);
+    System.out.println("file plain(ms) decimated(ms) same(%) within"
+        + TOLERANCE + "Hz(%)");
+    long totalPlain = 0;
+    long totalDecimated = 0;
+    long totalValues = 0;
+    long totalSame = 0;
+    long totalClose = 0;
+    List<String> names = new ArrayList<String>();
+    List<int[][]> plainPrints = new ArrayList<int[][]>();
+    List<int[][]> decimatedPrints = new ArrayList<int[][]>();
+    for (File file : files) {
+      byte[] header = readHeader(file);
+      if (header == null) continue;
+      byte[] decoded = null;
+      if (AudioFileTypeValidator.isMp3Signature1(header)
+          || AudioFileTypeValidator.isMp3Signature2(header)) {
+        decoded = decode(file);
+      } else if (!AudioFileTypeValidator.isWav(header)) {
+        continue;
+      }
+      int[][] plain = new int[0][0];
+      int[][] decimated = new int[0][0];
+      long plainTime = 0;
+      long decimatedTime = 0;
+      for (int run = 0; run < RUNS; run++) {
+        long start = System.nanoTime();
+        plain = fingerPrint(file, decoded, false);
+        plainTime += System.nanoTime() - start;
+        start = System.nanoTime();
+        decimated = fingerPrint(file, decoded, true);
+        decimatedTime += System.nanoTime() - start;
+      }
+      if (plain.length == 0 || decimated.length == 0) continue;
+      names.add(file.getName());
+      plainPrints.add(plain);
+      decimatedPrints.add(decimated);
+      int values = 0;
+      int same = 0;
+      int close = 0;
+      int rows = Math.min(plain.length, decimated.length);
+      for (int row = 0; row < rows; row++) {
+        for (int col = 0; col < plain[row].length; col++) {
+          int delta = Math.abs(plain[row][col] - decimated[row][col]);
+          values++;
+          if (delta == 0) same++;
+          if (delta <= TOLERANCE) close++;
+        }
+      }
+      totalPlain += plainTime / RUNS;
+      totalDecimated += decimatedTime / RUNS;
+      totalValues += values;
+      totalSame += same;
+      totalClose += close;
+      System.out.println(file.getName() + Constants.SPACE
+          + plainTime / RUNS / 1000000 + Constants.SPACE
+          + decimatedTime / RUNS / 1000000 + Constants.SPACE
+          + percent(same, values) + Constants.SPACE
+          + percent(close, values));
+    }
+    System.out.println("TOTAL " + totalPlain / 1000000
+        + Constants.SPACE + totalDecimated / 1000000 + Constants.SPACE
+        + percent(totalSame, totalValues) + Constants.SPACE
+        + percent(totalClose, totalValues));
+    compareMatches(names, plainPrints, decimatedPrints);
+  }
+
+  /**
+   * Matches every pair of different files with both fingerprints and
+   * prints the MATCH lines that differ and the pairs that agree.
+   *
+   * @param names the names of the files
+   * @param plainPrints the fingerprints without decimation
+   * @param decimatedPrints the fingerprints with decimation
+   */
+  private static void compareMatches(List<String> names,
+      List<int[][]> plainPrints, List<int[][]> decimatedPrints) {
+    FingerPrintWav matcher = new FingerPrintWav();
+    int pairs = 0;
+    int same = 0;
+    int plainMatches = 0;
+    int decimatedMatches = 0;
+    for (int i = 0; i < names.size(); i++) {
+      for (int j = i + 1; j < names.size(); j++) {
+        String plain =
+            matcher.getMatch(plainPrints.get(i), plainPrints.get(j),
+                names.get(i), names.get(j));
+        String decimated =
+            matcher.getMatch(decimatedPrints.get(i),
+                decimatedPrints.get(j), names.get(i), names.get(j));
+        pairs++;
+        if (plain != null) plainMatches++;
+        if (decimated != null) decimatedMatches++;
+        if (plain == null ? decimated == null : plain.equals(decimated)) {
+          same++;
+        } else {
+          System.out.println("plain " + plain + ", decimated "
+              + decimated);
+        }
+      }
+    }
+    System.out.println("MATCHES plain " + plainMatches + " decimated "
+        + decimatedMatches + ", same line for " + same + " of " + pairs
+        + " pairs");
+  }
+
+  /**
+   * Reads the first bytes of a file, enough to tell its type.
+   *
+   * @param file the file
+   * @return the first 12 bytes, null if the file is shorter
+   * @throws Exception the exception
+   */
+  private static byte[] readHeader(File file) throws Exception {
+    byte[] header = new byte[12];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      if (in.read(header) < header.length) return null;
+    } finally {
+      in.close();
+    }
+    return header;
+  }
+
+  /**
+   * Decodes an mp3 file in the JVM.
+   *
+   * @param file the mp3 file
+   * @return the bytes of the decoded wav file
+   * @throws Exception the exception
+   */
+  private static byte[] decode(File file) throws Exception {
+    InputStream in = new Mp3Decoder().decode(file);
+    try {
+      ByteArrayOutputStream wav = new ByteArrayOutputStream();
+      byte[] buffer = new byte[BUFFER_LENGTH];
+      int count;
+      while ((count = in.read(buffer)) > 0) {
+        wav.write(buffer, 0, count);
+      }
+      return wav.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Fingerprints the left channel of an audio file.
+   *
+   * @param file the audio file
+   * @param decoded the decoded wav file of an mp3 file, null to map
+   *          a wav file
+   * @param decimate true to decimate before the transform
+   * @return the fingerprint
+   * @throws Exception the exception
+   */
+  private static int[][] fingerPrint(File file, byte[] decoded,
+      boolean decimate) throws Exception {
+    System.setProperty(Constants.DECIMATE_SETTING, "" + decimate);
+    WavFile wav =
+        (decoded == null) ? WavFile.open(file) : WavFile.wrap(decoded);
+    try {
+      int[][][] channels = new FingerPrintWav().fingerPrintChannels(wav);
+      return (channels.length == 0) ? new int[0][0] : channels[0];
+    } finally {
+      wav.close();
+    }
+  }
+
+  /**
+   * Formats a ratio as a percentage.
+   *
+   * @param part the part
+   * @param total the total
+   * @return the percentage
+   */
+  private static String percent(long part, long total) {
+    if (total == 0) return "-";
+    return String.format("%.1f", 100.0 * part / total);
+  }
+}
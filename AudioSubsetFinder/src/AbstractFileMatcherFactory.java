@@ -1,7 +1,28 @@
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Class for checking file format and syntax.
@@ -69,12 +90,90 @@ public abstract class AbstractFileMatcherFactory {
         new HashMap<String, String>();
     /** Instance of the FingerPrintWav class *. */
     private FingerPrintWav fingerPrintWav = new FingerPrintWav();
-    /** The left channel fingerprints of all files. */
-    private Map<File, int[][]> leftChannelFingerprints =
-        new HashMap<File, int[][]>();
-    /** The right channel fingerprints of all files. */
-    private Map<File, int[][]> rightChannelFingerprints =
-        new HashMap<File, int[][]>();
+    /** The fingerprints computed in this run, within a budget. */
+    private final FingerPrintCache fingerPrintCache =
+        FingerPrintCache.fromSettings();
+    /**
+     * The chunks of pairs per thread when directories are
+     * matched in parallel.
+     */
+    private static final int PAIR_CHUNKS_PER_THREAD = 8;
+    /** The bytes read at a time from a decoder in pipeline mode. */
+    private static final int DECODE_BUFFER_LENGTH = 1 << 16;
+    /**
+     * The most bytes of an mp3 file decoded ahead in pipeline mode,
+     * about 48 seconds of 44.1 kHz stereo.
+     */
+    private static final int DECODE_AHEAD_LENGTH = 1 << 23;
+    /** The threads matching two directories, 1 to match serially. */
+    private final int matchThreads = Math.max(1, Settings.getInt(
+        Constants.MATCH_THREADS_SETTING, 1));
+    /**
+     * True if decoding, fingerprinting and matching overlap
+     * instead of running one after the other.
+     */
+    private final boolean pipeline = Settings.getBoolean(
+        Constants.PIPELINE_SETTING, false);
+    /** The files opened but not fingerprinted yet in pipeline mode. */
+    private final int pipelineQueue = Math.max(1, Settings.getInt(
+        Constants.PIPELINE_QUEUE_SETTING,
+        Constants.DEFAULT_PIPELINE_QUEUE));
+    /** The threads opening and decoding files in pipeline mode. */
+    private final int decodeThreads = Math.max(1, Settings.getInt(
+        Constants.DECODE_THREADS_SETTING, Runtime.getRuntime()
+            .availableProcessors()));
+    /** True if the cache counters are written to standard error. */
+    private final boolean cacheStats = Settings.getBoolean(
+        Constants.CACHE_STATS_SETTING, false);
+    /** True if the slow-path checks are written to standard error. */
+    private final boolean matchStats = Settings.getBoolean(
+        Constants.MATCH_STATS_SETTING, false);
+    /** The kind of stored left and right channel fingerprints. */
+    private static final String CHANNELS_KIND = "channels";
+    /** The kind of stored mid channel fingerprints. */
+    private static final String MID_KIND = "mid";
+    /** The decode mode of mp3 files. */
+    private final String decodeMode = Settings.getString(
+        Constants.DECODE_SETTING, Constants.DECODE_JAVA);
+    /**
+     * The fingerprints kept between runs, null if disabled. The
+     * decoder is part of the algorithm, the decoders do not give
+     * exactly the same samples.
+     */
+    private final FingerPrintStore store = FingerPrintStore
+        .fromSettings(fingerPrintWav.getAlgorithm() + "-"
+            + getDecoderName(decodeMode));
+    /**
+     * The decoders tried in turn on mp3 files decoded while they
+     * are fingerprinted, empty if they are decoded to wav files.
+     */
+    private final List<AudioDecoder> decoders = getDecoders(decodeMode);
+    /** The mp3 files decoded while they are fingerprinted. */
+    private Set<String> streamedMp3Files = new HashSet<String>();
+    /**
+     * The mp3 files not decoded yet because their fingerprints
+     * are stored.
+     */
+    private Set<String> deferredDecodes = Collections
+        .synchronizedSet(new HashSet<String>());
+    /** The locks held while deferred mp3 files are decoded. */
+    private Map<String, Object> decodeLocks =
+        new HashMap<String, Object>();
+    /** True if files are matched on their mid channel only. */
+    private final boolean downmix = Settings.getBoolean(
+        Constants.DOWNMIX_SETTING, false);
+    /**
+     * True if the legacy channel search also runs in downmix
+     * mode, to count the matches the mid channels miss.
+     */
+    private final boolean auditDownmix = downmix
+        && Settings.getBoolean(Constants.DOWNMIX_AUDIT_SETTING, false);
+    /** The pairs compared in downmix audit mode. */
+    private int downmixPairs;
+    /** The pairs matched by the legacy channel search. */
+    private int legacyMatches;
+    /** The legacy matches missed by the mid channels. */
+    private int downmixMisses;
 
     /**
      * Returns true if the input arguments are file formats
@@ -204,21 +303,33 @@ public abstract class AbstractFileMatcherFactory {
         String extension =
             filepath.substring(filepath.lastIndexOf(".") + 1,
                 filepath.length());
+        if (!decoders.isEmpty()) {
+          // decoded when fingerprinted, no copy and no wav file
+          // are written
+          streamedMp3Files.add(filepath);
+          return true;
+        }
         String finalInputFilePath = filepath;
         // if File does not have extension as .mp3, we
         // create the copy
-        // file in /tmp/AAX with extension .mp3
+        // file in /tmp with extension .mp3 and a unique name
         if (!extension.equalsIgnoreCase(Constants.MP3)) {
-          File file = new File(filepath);
-          finalInputFilePath =
-              Constants.OUTPUT_FILE_LOCATION + Constants.SLASH
-                  + file.getName().replaceFirst("[.][^.]+$", "")
-                  + Constants.DOT + Constants.MP3;
-          FileUtils.copyFile(file, new File(finalInputFilePath));
-          toRenameToMp3FileMap.put(filepath, finalInputFilePath);
+          if (toRenameToMp3FileMap.containsKey(filepath)) {
+            finalInputFilePath = toRenameToMp3FileMap.get(filepath);
+          } else {
+            File file = new File(filepath);
+            finalInputFilePath =
+                FileUtils.createTempFile(file.getName().replaceFirst(
+                    "[.][^.]+$", ""), Constants.DOT + Constants.MP3);
+            FileUtils.copyFile(file, new File(finalInputFilePath));
+            toRenameToMp3FileMap.put(filepath, finalInputFilePath);
+          }
+        }
+        // a file given twice is decoded once
+        if (!toConvertToWavFileMap.containsKey(finalInputFilePath)) {
+          toConvertToWavFileMap.put(finalInputFilePath,
+              FileUtils.getOutputFilePath(filepath));
         }
-        toConvertToWavFileMap.put(finalInputFilePath,
-            FileUtils.getOutputFilePath(filepath));
         return true;
       } else {
         throw new Exception(Constants.ERROR + filepath
@@ -235,9 +346,13 @@ public abstract class AbstractFileMatcherFactory {
     public void match(String[] args) {
       try {
         // Check if user input non .wave files
-        if (!toConvertToWavFileMap.isEmpty())
-        // convert to Canonical Form
-          FileUtils.convertToWav(toConvertToWavFileMap);
+        if (pipeline) {
+          // every file is decoded when the pipeline reaches it
+          deferredDecodes.addAll(toConvertToWavFileMap.keySet());
+        } else if (!toConvertToWavFileMap.isEmpty())
+        // convert to Canonical Form, except the files whose
+        // fingerprints are stored
+          FileUtils.convertToWav(getFilesToDecode());
       } catch (Exception e) {}
       args[1] =
           args[1].replace(Constants.TILDE,
@@ -251,7 +366,11 @@ public abstract class AbstractFileMatcherFactory {
           File fileOne = new File(args[1]);
           File fileTwo = new File(args[3]);
           // Compute FingerPrints of both files
-          matchTwoFiles(fileOne, fileTwo);
+          if (pipeline) {
+            matchInPipeline(new File[] {fileOne}, new File[] {fileTwo});
+          } else {
+            matchTwoFiles(fileOne, fileTwo);
+          }
         } else if (isFirstFile != isSecondFile) {
           // store the file and directory
           String file = isFirstFile ? args[1] : args[3];
@@ -263,9 +382,13 @@ public abstract class AbstractFileMatcherFactory {
             // Empty Directory, hence don't proceed
             return;
           }
-          for (File aFile : allFilesDir) {
-            // Call the Match method to detect a match
-            matchTwoFiles(fileOne, aFile);
+          if (pipeline) {
+            matchInPipeline(new File[] {fileOne}, allFilesDir);
+          } else {
+            for (File aFile : allFilesDir) {
+              // Call the Match method to detect a match
+              matchTwoFiles(fileOne, aFile);
+            }
           }
         } else {
           // When comparing two directories
@@ -275,13 +398,39 @@ public abstract class AbstractFileMatcherFactory {
           // One or both directories are empty, return
           if (allFilesDir1.length == 0 || allFilesDir2.length == 0) return;
 
-          // iterating over two directories
-          for (File aFileDir1 : allFilesDir1) {
-            for (File aFileDir2 : allFilesDir2) {
-              matchTwoFiles(aFileDir1, aFileDir2);
+          if (pipeline) {
+            matchInPipeline(allFilesDir1, allFilesDir2);
+          } else if (matchThreads > 1) {
+            matchInParallel(allFilesDir1, allFilesDir2);
+          } else {
+            // iterating over two directories
+            for (File aFileDir1 : allFilesDir1) {
+              for (File aFileDir2 : allFilesDir2) {
+                matchTwoFiles(aFileDir1, aFileDir2);
+              }
             }
           }
         }
+        if (auditDownmix) {
+          System.err.println("STATS: downmix missed " + downmixMisses
+              + " of " + legacyMatches + " legacy matches in "
+              + downmixPairs + " pairs");
+        }
+        if (cacheStats) {
+          System.err.println("STATS: fingerprint cache "
+              + fingerPrintCache.getHits() + " hits, "
+              + fingerPrintCache.getMisses() + " misses, "
+              + fingerPrintCache.getEvictions() + " evictions, "
+              + fingerPrintCache.getBytes() + " bytes");
+        }
+        if (matchStats) {
+          long firstSecondChecks = fingerPrintWav.getFirstSecondChecks();
+          long slowChecks = fingerPrintWav.getSlowChecks();
+          System.err.println("STATS: anchors ran " + slowChecks
+              + " slow-path checks, the first second alone "
+              + firstSecondChecks + ", saved "
+              + (firstSecondChecks - slowChecks));
+        }
         // delete the temporary file created while
         // converting input files to canonical form
         FileUtils.deleteTempFiles(toConvertToWavFileMap);
@@ -292,114 +441,694 @@ public abstract class AbstractFileMatcherFactory {
     }
 
     /**
-     * Match two files.
+     * Gets the mp3 files to decode before matching. With a
+     * fingerprint store, files whose fingerprints are all stored
+     * are deferred, they are only decoded if their stored
+     * fingerprints cannot be read.
+     * 
+     * @return the map of mp3 files to decode and their wav
+     *         outputs
+     */
+    private Map<String, String> getFilesToDecode() {
+      if (store == null) return toConvertToWavFileMap;
+      Map<String, String> filesToDecode = new HashMap<String, String>();
+      for (Map.Entry<String, String> entry : toConvertToWavFileMap
+          .entrySet()) {
+        File source = getSourceFile(entry.getKey());
+        boolean isStored =
+            downmix ? store.contains(source, MID_KIND) : store
+                .contains(source, CHANNELS_KIND);
+        if (isStored && auditDownmix) {
+          isStored = store.contains(source, CHANNELS_KIND);
+        }
+        if (isStored) {
+          deferredDecodes.add(entry.getKey());
+        } else {
+          filesToDecode.put(entry.getKey(), entry.getValue());
+        }
+      }
+      return filesToDecode;
+    }
+
+    /**
+     * Gets the input file of an mp3 file to decode, hashing the
+     * input rather than its renamed copy lets the store skip
+     * hashing unchanged inputs.
+     * 
+     * @param mp3Path: the path of the mp3 file to decode
+     * @return the input file with the same content
+     */
+    private File getSourceFile(String mp3Path) {
+      for (Map.Entry<String, String> entry : toRenameToMp3FileMap
+          .entrySet()) {
+        if (entry.getValue().equals(mp3Path)) {
+          return new File(entry.getKey());
+        }
+      }
+      return new File(mp3Path);
+    }
+
+    /**
+     * Opens a file to fingerprint it, decoding it first if its
+     * decoding was deferred, or streaming its decoded samples
+     * unless mp3 files are decoded to wav files.
+     * 
+     * @param file: the file from the command args
+     * @return the wav file
+     * @throws Exception the exception
+     */
+    private WavFile openWavFile(File file) throws Exception {
+      String filePath = file.getAbsolutePath();
+      if (streamedMp3Files.contains(filePath)) {
+        return WavFile.pipe(decode(file));
+      }
+      if (toRenameToMp3FileMap.containsKey(filePath)) {
+        filePath = toRenameToMp3FileMap.get(filePath);
+      }
+      // hold the lock of the file while decoding it, so that no
+      // thread opens the wav file before it is complete
+      synchronized (getDecodeLock(filePath)) {
+        if (deferredDecodes.remove(filePath)) {
+          Map<String, String> single = new HashMap<String, String>();
+          single.put(filePath, toConvertToWavFileMap.get(filePath));
+          FileUtils.convertToWav(single);
+        }
+      }
+      return WavFile.open(getActualFile(file));
+    }
+
+    /**
+     * Gets the lock held while a deferred mp3 file is decoded,
+     * files are decoded concurrently but each one only once.
      * 
+     * @param mp3Path: the path of the mp3 file to decode
+     * @return the lock of the file
+     */
+    private Object getDecodeLock(String mp3Path) {
+      synchronized (decodeLocks) {
+        Object lock = decodeLocks.get(mp3Path);
+        if (lock == null) {
+          lock = new Object();
+          decodeLocks.put(mp3Path, lock);
+        }
+        return lock;
+      }
+    }
+
+    /**
+     * Starts decoding an mp3 file with the first decoder that
+     * supports it.
+     * 
+     * @param file: the mp3 file, whatever its extension
+     * @return the wav stream of the decoder
+     * @throws IOException if no decoder supports the file
+     */
+    private InputStream decode(File file) throws IOException {
+      IOException failure = null;
+      for (AudioDecoder decoder : decoders) {
+        try {
+          return decoder.decode(file);
+        } catch (IOException e) {
+          // unsupported stream, try the next decoder
+          failure = e;
+        }
+      }
+      throw failure;
+    }
+
+    /**
+     * Gets the decoders of a decode mode. The java mode decodes in
+     * the JVM and falls back to lame for the streams it does not
+     * support, the pipe mode only pipes files through lame.
+     * 
+     * @param mode: the decode mode
+     * @return the decoders, empty if mp3 files are decoded to wav
+     *         files
+     */
+    private static List<AudioDecoder> getDecoders(String mode) {
+      List<AudioDecoder> decoders = new ArrayList<AudioDecoder>();
+      if (mode.equalsIgnoreCase(Constants.DECODE_JAVA)) {
+        decoders.add(new Mp3Decoder());
+        decoders.add(new LameDecoder());
+      } else if (mode.equalsIgnoreCase(Constants.DECODE_PIPE)) {
+        decoders.add(new LameDecoder());
+      }
+      return decoders;
+    }
+
+    /**
+     * Gets the name of the decoder of mp3 files in a decode mode.
+     * Files the JVM decoder does not support fall back to lame in
+     * every run, so each file is always decoded the same way in a
+     * mode.
+     * 
+     * @param mode: the decode mode
+     * @return mp3java if mp3 files are decoded in the JVM, lame
+     *         otherwise
+     */
+    private static String getDecoderName(String mode) {
+      return mode.equalsIgnoreCase(Constants.DECODE_JAVA) ? "mp3java"
+          : "lame";
+    }
+
+    /**
+     * Match two files and print the match if any.
+     *
      * @param file1: audio file1
      * @param file2: audio file2
      * @throws Exception the exception
      */
     private void matchTwoFiles(File file1, File file2)
         throws Exception {
+      String match = getPairMatch(file1, file2);
+      if (match != null) System.out.println(match);
+    }
 
-      // Get the byte arrays of the files
-      byte[] file1Bytes =
-          FileUtils.readFileBytes(getActualFile(file1));
-      byte[] file2Bytes =
-          FileUtils.readFileBytes(getActualFile(file2));
-      // Get the headers
-      byte[] headerFile1 =
-          fingerPrintWav.getWavBodyHeader(file1Bytes,
-              Constants.HEADER);
-      byte[] headerFile2 =
-          fingerPrintWav.getWavBodyHeader(file2Bytes,
-              Constants.HEADER);
-      // Get the channels
-      int channelFile1 =
-          fingerPrintWav.getWavProperty(headerFile1,
-              Constants.CHANNELS);
-      if (channelFile1 == -1) return;
-      int channelFile2 =
-          fingerPrintWav.getWavProperty(headerFile2,
-              Constants.CHANNELS);
-      if (channelFile2 == -1) return;
-      
-      
-      // Declare 2-D arrays for storing left channel
-      // fingerprints of both files
-      int[][] fingerPrintLeftFile1;
-      int[][] fingerPrintLeftFile2;
-      // Initialize empty 2-D arrays for storing right
-      // channel
-      // fingerprints of both files
-      int[][] fingerPrintRightFile1 = new int[0][0];
-      int[][] fingerPrintRightFile2 = new int[0][0];
-      // Caching : Populate left channel fingerprints of
-      // both files from
-      // the cache, if not present then cache it.
-      if (!leftChannelFingerprints.containsKey(file1)) {
-        fingerPrintLeftFile1 =
-            fingerPrintWav.fingerPrint(file1Bytes, headerFile1,
-                channelFile1, true);
-        leftChannelFingerprints.put(file1, fingerPrintLeftFile1);
-      } else {
-        fingerPrintLeftFile1 = leftChannelFingerprints.get(file1);
-      }
-      if (!leftChannelFingerprints.containsKey(file2)) {
-        fingerPrintLeftFile2 =
-            fingerPrintWav.fingerPrint(file2Bytes, headerFile2,
-                channelFile2, true);
-        leftChannelFingerprints.put(file2, fingerPrintLeftFile2);
-      } else {
-        fingerPrintLeftFile2 = leftChannelFingerprints.get(file2);
-      }
-      
+    /**
+     * Match two files without printing. Fingerprints come from
+     * the cache, a file is only opened the first time one of
+     * its fingerprints is needed. Safe to call from several
+     * threads.
+     *
+     * @param file1: audio file1
+     * @param file2: audio file2
+     * @return the MATCH line to print if match found, otherwise
+     *         null
+     * @throws Exception the exception
+     */
+    private String getPairMatch(File file1, File file2)
+        throws Exception {
       // Get filenames
       String file1Name = file1.getName();
       String file2Name = file2.getName();
-      // If match is detected between left channel
-      // fingerprints of
-      // two files, return
-      if (fingerPrintWav.matchTwoFingerPrints(fingerPrintLeftFile1,
-          fingerPrintLeftFile2, file1Name, file2Name)) {
-        return;
-      }
-      // Otherwise, check if any file is stereo and get
-      // right channel
-      // fingerprints from the cache if present, else
-      // compute and store it.
-      if (channelFile1 == 2) {
-        if (!rightChannelFingerprints.containsKey(file1)) {
-          fingerPrintRightFile1 =
-              fingerPrintWav.fingerPrint(file1Bytes, headerFile1,
-                  channelFile1, false);
-          rightChannelFingerprints.put(file1, fingerPrintRightFile1);
-        } else {
-          fingerPrintRightFile1 = rightChannelFingerprints.get(file1);
+      if (downmix) {
+        // Match the mid channels of both files once
+        String match =
+            fingerPrintWav.getMatch(getMidFingerPrint(file1),
+                getMidFingerPrint(file2), file1Name, file2Name);
+        if (auditDownmix) {
+          // Run the legacy channel search silently to count the
+          // matches the mid channels miss
+          boolean isLegacyMatch =
+              matchChannels(getFingerPrints(file1),
+                  getFingerPrints(file2), file1Name, file2Name) != null;
+          synchronized (this) {
+            downmixPairs++;
+            if (isLegacyMatch) {
+              legacyMatches++;
+              if (match == null) downmixMisses++;
+            }
+          }
         }
+        return match;
       }
-      if (channelFile2 == 2) {
-        if (!rightChannelFingerprints.containsKey(file2)) {
-          fingerPrintRightFile2 =
-              fingerPrintWav.fingerPrint(file2Bytes, headerFile2,
-                  channelFile2, false);
-          rightChannelFingerprints.put(file2, fingerPrintRightFile2);
-        } else {
-          fingerPrintRightFile2 = rightChannelFingerprints.get(file2);
-        }
+      // Caching : Populate the fingerprints of both files
+      // from the cache, if not present then compute all
+      // channels of the file in one pass and cache them.
+      return matchChannels(getFingerPrints(file1),
+          getFingerPrints(file2), file1Name, file2Name);
+    }
+
+    /**
+     * Match the left and right channel fingerprints of two
+     * files, stopping at the first match.
+     *
+     * @param fingerPrints1: channel fingerprints of file1
+     * @param fingerPrints2: channel fingerprints of file2
+     * @param file1Name: the file1 name
+     * @param file2Name: the file2 name
+     * @return the MATCH line to print if match found, otherwise
+     *         null
+     */
+    private String matchChannels(FingerPrint[] fingerPrints1,
+        FingerPrint[] fingerPrints2, String file1Name,
+        String file2Name) {
+      FingerPrint fingerPrintLeftFile1 = fingerPrints1[0];
+      FingerPrint fingerPrintLeftFile2 = fingerPrints2[0];
+      // Right channel fingerprints are empty for mono files
+      FingerPrint fingerPrintRightFile1 = FingerPrint.EMPTY;
+      FingerPrint fingerPrintRightFile2 = FingerPrint.EMPTY;
+      if (fingerPrints1.length == 2) {
+        fingerPrintRightFile1 = fingerPrints1[1];
+      }
+      if (fingerPrints2.length == 2) {
+        fingerPrintRightFile2 = fingerPrints2[1];
       }
       // Try to match two files by
-      // (LEFT VS RIGHT, RIGHT VS LEFT, RIGHT VS RIGHT)
-      // channel fingerprints.
+      // (LEFT VS LEFT, LEFT VS RIGHT, RIGHT VS LEFT,
+      // RIGHT VS RIGHT) channel fingerprints.
       // Only proceed with matching when no match is found
-      if (!fingerPrintWav.matchTwoFingerPrints(fingerPrintLeftFile1,
-          fingerPrintRightFile2, file1Name, file2Name)) {
-        if (!fingerPrintWav.matchTwoFingerPrints(
-            fingerPrintRightFile1, fingerPrintLeftFile2, file1Name,
-            file2Name)) {
-          fingerPrintWav.matchTwoFingerPrints(fingerPrintRightFile1,
-              fingerPrintRightFile2, file1Name, file2Name);
+      FingerPrint[] pairs =
+          {fingerPrintLeftFile1, fingerPrintLeftFile2,
+              fingerPrintLeftFile1, fingerPrintRightFile2,
+              fingerPrintRightFile1, fingerPrintLeftFile2,
+              fingerPrintRightFile1, fingerPrintRightFile2};
+      for (int i = 0; i < pairs.length; i += 2) {
+        String match =
+            fingerPrintWav.getMatch(pairs[i], pairs[i + 1],
+                file1Name, file2Name);
+        if (match != null) return match;
+      }
+      return null;
+    }
+
+    /**
+     * The MATCH lines of a chunk of pairs matched in parallel,
+     * up to the pair that failed if one did.
+     */
+    private static class ChunkMatches {
+      /** The MATCH lines of the pairs matched. */
+      private final List<String> matches = new ArrayList<String>();
+      /** The failure of a pair, null if every pair was matched. */
+      private Exception failure;
+    }
+
+    /**
+     * Match every file of the first directory with every file
+     * of the second one on a work-stealing pool. Every file is
+     * fingerprinted once, in parallel, then the pairs are split
+     * into chunks matched in parallel. The matches are printed
+     * in the order of the serial loop, a chunk as soon as it
+     * and all the chunks before it are done.
+     *
+     * @param files1: the files of the first directory
+     * @param files2: the files of the second directory
+     * @throws Exception the exception of the first pair that
+     *           failed, after the matches before it are printed
+     */
+    private void matchInParallel(final File[] files1,
+        final File[] files2) throws Exception {
+      ForkJoinPool pool = new ForkJoinPool(matchThreads);
+      try {
+        // Fingerprint every file once; failures are ignored
+        // here and thrown again by their first pair
+        List<Callable<Object>> fingerPrintTasks =
+            new ArrayList<Callable<Object>>();
+        for (File[] files : new File[][] {files1, files2}) {
+          for (final File file : files) {
+            fingerPrintTasks.add(new Callable<Object>() {
+              public Object call() throws Exception {
+                if (downmix) getMidFingerPrint(file);
+                if (!downmix || auditDownmix) getFingerPrints(file);
+                return null;
+              }
+            });
+          }
+        }
+        pool.invokeAll(fingerPrintTasks);
+        // Several chunks per thread let idle threads steal work
+        final long pairs = (long) files1.length * files2.length;
+        long chunk =
+            Math.max(1, pairs / (matchThreads * PAIR_CHUNKS_PER_THREAD));
+        List<Future<ChunkMatches>> results =
+            new ArrayList<Future<ChunkMatches>>();
+        for (long start = 0; start < pairs; start += chunk) {
+          final long from = start;
+          final long to = Math.min(pairs, start + chunk);
+          results.add(pool.submit(new Callable<ChunkMatches>() {
+            public ChunkMatches call() {
+              ChunkMatches chunkMatches = new ChunkMatches();
+              try {
+                for (long pair = from; pair < to; pair++) {
+                  String match =
+                      getPairMatch(
+                          files1[(int) (pair / files2.length)],
+                          files2[(int) (pair % files2.length)]);
+                  if (match != null) chunkMatches.matches.add(match);
+                }
+              } catch (Exception e) {
+                // the pairs after a failure are not matched
+                chunkMatches.failure = e;
+              }
+              return chunkMatches;
+            }
+          }));
+        }
+        for (Future<ChunkMatches> result : results) {
+          ChunkMatches chunkMatches;
+          try {
+            chunkMatches = result.get();
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+          }
+          for (String match : chunkMatches.matches) {
+            System.out.println(match);
+          }
+          if (chunkMatches.failure != null) throw chunkMatches.failure;
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    /**
+     * Match every file of the first list with every file of the
+     * second one in overlapping stages. Decoder threads open the
+     * files in turn, decoding them or reading them from disk, and
+     * hand them to a fixed pool, which fingerprints them and
+     * matches every pair as soon as both of its files are
+     * fingerprinted. A decoder waits while arc5500.pipelineQueue
+     * files are open and not fingerprinted yet, so decoding never
+     * runs far ahead of the pool. The matches are printed in the
+     * order of the serial loop.
+     *
+     * @param files1: the files of the first list
+     * @param files2: the files of the second list
+     * @throws Exception the exception of the first pair that
+     *           failed, after the matches before it are printed
+     */
+    private void matchInPipeline(final File[] files1,
+        final File[] files2) throws Exception {
+      final Map<String, List<Integer>> rows = getPositions(files1);
+      final Map<String, List<Integer>> columns = getPositions(files2);
+      // A pair is matched once both of its files are ready
+      final AtomicIntegerArray waiting =
+          new AtomicIntegerArray(files1.length * files2.length);
+      final List<FutureTask<String>> matches =
+          new ArrayList<FutureTask<String>>();
+      for (int pair = 0; pair < waiting.length(); pair++) {
+        waiting.set(pair, 2);
+        final File file1 = files1[pair / files2.length];
+        final File file2 = files2[pair % files2.length];
+        matches.add(new FutureTask<String>(new Callable<String>() {
+          public String call() throws Exception {
+            return getPairMatch(file1, file2);
+          }
+        }));
+      }
+      // Every file is fingerprinted once, the files of both lists
+      // in turn so that the first pairs are ready early
+      Map<String, File> files = new LinkedHashMap<String, File>();
+      int length = Math.max(files1.length, files2.length);
+      for (int i = 0; i < length; i++) {
+        for (File[] list : new File[][] {files1, files2}) {
+          if (i < list.length) {
+            files.put(list[i].getAbsolutePath(), list[i]);
+          }
+        }
+      }
+      final ExecutorService decoders =
+          Executors.newFixedThreadPool(decodeThreads);
+      final ExecutorService pool =
+          Executors.newFixedThreadPool(matchThreads);
+      final Semaphore slots = new Semaphore(pipelineQueue);
+      final Set<WavFile> pending =
+          Collections.synchronizedSet(new HashSet<WavFile>());
+      try {
+        for (final File file : files.values()) {
+          final Runnable ready = new Runnable() {
+            public void run() {
+              String path = file.getAbsolutePath();
+              if (rows.containsKey(path)) {
+                for (int row : rows.get(path)) {
+                  for (int column = 0; column < files2.length; column++) {
+                    release(row * files2.length + column);
+                  }
+                }
+              }
+              if (columns.containsKey(path)) {
+                for (int column : columns.get(path)) {
+                  for (int row = 0; row < files1.length; row++) {
+                    release(row * files2.length + column);
+                  }
+                }
+              }
+            }
+
+            private void release(int pair) {
+              if (waiting.decrementAndGet(pair) == 0) {
+                try {
+                  pool.execute(matches.get(pair));
+                } catch (RejectedExecutionException e) {
+                  // the pipeline is stopping
+                }
+              }
+            }
+          };
+          decoders.execute(new Runnable() {
+            public void run() {
+              try {
+                slots.acquire();
+              } catch (InterruptedException e) {
+                return;
+              }
+              WavFile wavFile = null;
+              boolean isOpened = true;
+              try {
+                if (!isStored(file)) wavFile = decodeWavFile(file);
+              } catch (Exception e) {
+                // thrown again by the first pair of the file
+                isOpened = false;
+              }
+              if (wavFile != null) pending.add(wavFile);
+              try {
+                pool.execute(fingerPrintTask(file, wavFile, isOpened,
+                    pending, slots, ready));
+              } catch (RejectedExecutionException e) {
+                // the pipeline is stopping
+                if (wavFile != null) wavFile.close();
+              }
+            }
+          });
+        }
+        for (FutureTask<String> result : matches) {
+          String match;
+          try {
+            match = result.get();
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+          }
+          if (match != null) System.out.println(match);
+        }
+      } finally {
+        decoders.shutdownNow();
+        pool.shutdownNow();
+        // close the files opened but never fingerprinted
+        synchronized (pending) {
+          for (WavFile wavFile : pending) {
+            wavFile.close();
+          }
+          pending.clear();
+        }
+      }
+    }
+
+    /**
+     * Opens a file in the decode stage of the pipeline. An mp3 file
+     * otherwise decoded while it is fingerprinted has its first
+     * DECODE_AHEAD_LENGTH bytes decoded into memory here, so that
+     * its decoding overlaps the fingerprinting of the files before
+     * it; the rest is decoded as it is fingerprinted, a batch of
+     * seconds at a time, so that memory does not grow with the
+     * length of the file.
+     *
+     * @param file: the file from the command args
+     * @return the wav file
+     * @throws Exception the exception
+     */
+    private WavFile decodeWavFile(File file) throws Exception {
+      if (!streamedMp3Files.contains(file.getAbsolutePath())) {
+        return openWavFile(file);
+      }
+      InputStream in = decode(file);
+      try {
+        byte[] ahead = new byte[DECODE_BUFFER_LENGTH];
+        int count = 0;
+        int read = 0;
+        while (read >= 0 && count < DECODE_AHEAD_LENGTH) {
+          if (count == ahead.length) {
+            ahead = Arrays.copyOf(ahead, ahead.length * 2);
+          }
+          read = in.read(ahead, count, ahead.length - count);
+          if (read > 0) count += read;
+        }
+        WavFile wavFile =
+            WavFile.pipe(new SequenceInputStream(new ByteArrayInputStream(
+                ahead, 0, count), in));
+        // closed with the wav file from now on
+        in = null;
+        return wavFile;
+      } finally {
+        if (in != null) in.close();
+      }
+    }
+
+    /**
+     * Gets the task fingerprinting a file opened by the decode
+     * stage of the pipeline.
+     *
+     * @param file: the audio file
+     * @param wavFile: the opened file, null if its fingerprints
+     *          are stored
+     * @param isOpened: false if the file could not be opened
+     * @param pending: the files opened but not fingerprinted yet
+     * @param slots: the slot of the file is released when done
+     * @param ready: run once the file is fingerprinted
+     * @return the task
+     */
+    private Runnable fingerPrintTask(final File file,
+        final WavFile wavFile, final boolean isOpened,
+        final Set<WavFile> pending, final Semaphore slots,
+        final Runnable ready) {
+      return new Runnable() {
+        public void run() {
+          try {
+            // a file no longer pending was closed by a failure
+            boolean isPending = wavFile == null || pending.remove(wavFile);
+            if (isOpened && isPending) {
+              getFingerPrints(file, downmix ? MID_KIND : CHANNELS_KIND,
+                  wavFile);
+              // the audit reads the file a second time
+              if (auditDownmix) getFingerPrints(file);
+            }
+          } catch (Exception e) {
+            // thrown again by the first pair of the file
+          } finally {
+            if (wavFile != null) wavFile.close();
+            slots.release();
+            ready.run();
+          }
         }
+      };
+    }
+
+    /**
+     * Checks if all the fingerprints the pairs of a file need are
+     * in the fingerprint store, the file is then not opened.
+     *
+     * @param file: the audio file
+     * @return true, if stored
+     */
+    private boolean isStored(File file) {
+      if (store == null) return false;
+      boolean isStored =
+          store.contains(file, downmix ? MID_KIND : CHANNELS_KIND);
+      if (isStored && auditDownmix) {
+        isStored = store.contains(file, CHANNELS_KIND);
+      }
+      return isStored;
+    }
+
+    /**
+     * Gets the positions of every file in a list, by absolute
+     * path.
+     *
+     * @param files: the list of files
+     * @return the positions of every file, in order
+     */
+    private static Map<String, List<Integer>> getPositions(
+        File[] files) {
+      Map<String, List<Integer>> positions =
+          new HashMap<String, List<Integer>>();
+      for (int i = 0; i < files.length; i++) {
+        String path = files[i].getAbsolutePath();
+        if (!positions.containsKey(path)) {
+          positions.put(path, new ArrayList<Integer>());
+        }
+        positions.get(path).add(i);
+      }
+      return positions;
+    }
+
+    /**
+     * Gets the mid channel fingerprint of a file from the
+     * cache, computing it on a miss.
+     * 
+     * @param file: the audio file
+     * @return the mid channel fingerprint
+     * @throws Exception the exception
+     */
+    private FingerPrint getMidFingerPrint(File file)
+        throws Exception {
+      return getFingerPrints(file, MID_KIND, null)[0];
+    }
+
+    /**
+     * Gets the left and, for stereo files, right channel
+     * fingerprints of a file from the cache, computing them on
+     * a miss.
+     * 
+     * @param file: the audio file
+     * @return the left channel fingerprint, followed by the
+     *         right one for stereo files
+     * @throws Exception the exception
+     */
+    private FingerPrint[] getFingerPrints(File file)
+        throws Exception {
+      return getFingerPrints(file, CHANNELS_KIND, null);
+    }
+
+    /**
+     * Gets fingerprints of a file from the cache, computing them
+     * on a miss, from the file already opened if any. They are
+     * flattened once, before they are cached.
+     * 
+     * @param file: the audio file
+     * @param kind: the kind of fingerprints, channels or mid
+     * @param wavFile: the opened file, null to open it on a miss
+     * @return the fingerprint of every channel
+     * @throws Exception the exception
+     */
+    private FingerPrint[] getFingerPrints(final File file,
+        final String kind, final WavFile wavFile) throws Exception {
+      return fingerPrintCache.get(kind + File.pathSeparator + file,
+          new Callable<FingerPrint[]>() {
+            public FingerPrint[] call() throws Exception {
+              if (wavFile == null) {
+                return FingerPrint.of(loadFingerPrints(file, kind));
+              }
+              return FingerPrint.of(computeFingerPrints(file, kind,
+                  wavFile));
+            }
+          });
+    }
+
+    /**
+     * Loads fingerprints of a file from the fingerprint store,
+     * or computes all channels of the file in a single pass
+     * over its data.
+     * 
+     * @param file: the audio file
+     * @param kind: the kind of fingerprints, channels or mid
+     * @return the fingerprint of every channel
+     * @throws Exception the exception
+     */
+    private int[][][] loadFingerPrints(File file, String kind)
+        throws Exception {
+      int[][][] fingerPrints =
+          (store == null) ? null : store.load(file, kind);
+      if (fingerPrints != null) return fingerPrints;
+      // Map or stream the file only on a cache miss
+      return computeFingerPrints(file, kind, openWavFile(file));
+    }
+
+    /**
+     * Computes the fingerprints of an opened file in a single pass
+     * over its data and keeps them in the fingerprint store.
+     * 
+     * @param file: the audio file
+     * @param kind: the kind of fingerprints, channels or mid
+     * @param wavFile: the opened file, closed once read
+     * @return the fingerprint of every channel
+     * @throws Exception the exception
+     */
+    private int[][][] computeFingerPrints(File file, String kind,
+        WavFile wavFile) throws Exception {
+      int[][][] fingerPrints;
+      try {
+        fingerPrints =
+            kind.equals(MID_KIND) ? new int[][][] {fingerPrintWav
+                .fingerPrintMid(wavFile)} : fingerPrintWav
+                .fingerPrintChannels(wavFile);
+      } finally {
+        wavFile.close();
       }
+      if (store != null) store.save(file, kind, fingerPrints);
+      return fingerPrints;
     }
 
     /**
@@ -0,0 +1,21 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The Interface AudioDecoder decodes a compressed audio file to a wav
+ * stream, read by {@link WavFile#pipe} while the file is fingerprinted.
+ */
+public interface AudioDecoder {
+
+  /**
+   * Starts decoding a file. Closing the stream stops the decoder.
+   *
+   * @param file the compressed file, whatever its extension
+   * @return the wav stream, a header then the samples as they are
+   *         decoded
+   * @throws IOException if the file cannot be decoded by this
+   *           decoder, e.g. its format is not supported
+   */
+  InputStream decode(File file) throws IOException;
+}
@@ -0,0 +1,112 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Class BandPeakKernel turns the half spectrum of one second into
+ * its fingerprint row: for every frequency range it finds the bin with
+ * the highest magnitude. The range of every bin is looked up in a
+ * table computed once per spectrum size, and squared magnitudes are
+ * compared since they give the same maximum as the log magnitudes.
+ */
+public class BandPeakKernel {
+
+  /**
+   * The cached kernels, keyed by ranges, start frequency, number of
+   * bins and Hz per bin.
+   */
+  private static final Map<String, BandPeakKernel> KERNELS =
+      new ConcurrentHashMap<String, BandPeakKernel>();
+
+  /** The upper bound of every frequency range. */
+  private final int[] freqRange;
+
+  /** The number of bins below the Nyquist frequency. */
+  private final int nyquistBin;
+
+  /** The frequency of every bin, rounded to an integer. */
+  private final int[] freqOfBin;
+
+  /** The range index of every bin, -1 if the bin is not used. */
+  private final int[] rangeOfBin;
+
+  /**
+   * Instantiates a new kernel.
+   * 
+   * @param freqRange the upper bound of every frequency range
+   * @param startFreq the lowest frequency taken into account
+   * @param nyquistBin the number of bins below the Nyquist frequency
+   * @param hzPerBin the frequency of one bin
+   */
+  private BandPeakKernel(int[] freqRange, int startFreq,
+      int nyquistBin, double hzPerBin) {
+    this.freqRange = freqRange.clone();
+    this.nyquistBin = nyquistBin;
+    this.freqOfBin = new int[nyquistBin];
+    this.rangeOfBin = new int[nyquistBin];
+    int index = 0;
+    for (int bin = 0; bin < nyquistBin; bin++) {
+      int freq = (int) Math.round(bin * hzPerBin);
+      // ranges are sorted, so the index only moves forward
+      while (index < freqRange.length && freqRange[index] < freq) {
+        index++;
+      }
+      freqOfBin[bin] = freq;
+      rangeOfBin[bin] =
+          (freq < startFreq || index >= freqRange.length) ? -1 : index;
+    }
+  }
+
+  /**
+   * Gets the kernel for the given ranges and spectrum, computing it on
+   * first use.
+   * 
+   * @param freqRange the upper bound of every frequency range
+   * @param startFreq the lowest frequency taken into account
+   * @param nyquistBin the number of bins below the Nyquist frequency
+   * @param hzPerBin the frequency of one bin
+   * @return the shared kernel
+   */
+  public static BandPeakKernel forBins(int[] freqRange, int startFreq,
+      int nyquistBin, double hzPerBin) {
+    String key =
+        Arrays.toString(freqRange) + Constants.SPACE + startFreq
+            + Constants.SPACE + nyquistBin + Constants.SPACE + hzPerBin;
+    BandPeakKernel kernel = KERNELS.get(key);
+    if (kernel == null) {
+      kernel =
+          new BandPeakKernel(freqRange, startFreq, nyquistBin,
+              hzPerBin);
+      BandPeakKernel existing = KERNELS.putIfAbsent(key, kernel);
+      if (existing != null) kernel = existing;
+    }
+    return kernel;
+  }
+
+  /**
+   * Finds the bin with the highest magnitude in every frequency range.
+   * 
+   * @param real the real part of the half spectrum
+   * @param imag the imaginary part of the half spectrum
+   * @param maxPower the buffer for the highest squared magnitude of
+   *          every range, at least as long as the ranges
+   * @param maxFreq the fingerprint row, receives the frequency of the
+   *          highest magnitude of every range
+   */
+  public void pickPeaks(double[] real, double[] imag,
+      double[] maxPower, int[] maxFreq) {
+    for (int index = 0; index < freqRange.length; index++) {
+      maxPower[index] = 0.0;
+      maxFreq[index] = 0;
+    }
+    for (int bin = 0; bin < nyquistBin; bin++) {
+      int index = rangeOfBin[bin];
+      if (index < 0) continue;
+      double power = real[bin] * real[bin] + imag[bin] * imag[bin];
+      if (power > maxPower[index]) {
+        maxPower[index] = power;
+        maxFreq[index] = freqOfBin[bin];
+      }
+    }
+  }
+}
@@ -11,6 +11,8 @@ public class Constants {
   public static String SPACE = " ";
   /** The lame decode. */
   public static String LAME_DECODE = "--decode";
+  /** The lame file name of the standard input or output. */
+  public static String LAME_PIPE = "-";
   /** The tilde. */
   public static String TILDE = "~";
   /** The dot. */
@@ -33,19 +35,95 @@ public class Constants {
   public static final String MP3 = "mp3";
   /** The Constant ERROR. */
   public static final String ERROR = "ERROR: ";
-  
-  /** The Constant CHANNELS. */
-  public static final String CHANNELS = "channels";
-  
-  /** The Constant BYTES_PER_SEC. */
-  public static final String BYTES_PER_SEC = "bytesPerSec";
-  
-  /** The Constant BITS_PER_SAMPLE. */
-  public static final String BITS_PER_SAMPLE = "bitsPerSampBytes";
-  
-  /** The Constant BODY. */
-  public static final String BODY = "body";
-  
-  /** The Constant HEADER. */
-  public static final String HEADER = "header";
+
+  /** The setting selecting the frame policy. */
+  public static final String FRAME_POLICY_SETTING = "arc5500.frame";
+
+  /** The setting enabling decimation before the transform. */
+  public static final String DECIMATE_SETTING = "arc5500.decimate";
+
+  /** The setting giving the number of threads per fingerprint. */
+  public static final String FINGERPRINT_THREADS_SETTING =
+      "arc5500.fingerprintThreads";
+
+  /** The setting matching files on their mid channel only. */
+  public static final String DOWNMIX_SETTING = "arc5500.downmix";
+
+  /** The setting auditing the downmix mode. */
+  public static final String DOWNMIX_AUDIT_SETTING =
+      "arc5500.downmixAudit";
+
+  /** The setting streaming every wav file instead of mapping it. */
+  public static final String STREAMING_SETTING = "arc5500.streaming";
+
+  /** The setting giving the directory of the fingerprint store. */
+  public static final String CACHE_DIR_SETTING = "arc5500.cacheDir";
+
+  /** The setting giving the budget of the fingerprint cache in MB. */
+  public static final String CACHE_MEGABYTES_SETTING =
+      "arc5500.cacheMegabytes";
+
+  /** The default budget of the fingerprint cache in MB. */
+  public static final int DEFAULT_CACHE_MEGABYTES = 256;
+
+  /** The setting writing the fingerprint cache counters. */
+  public static final String CACHE_STATS_SETTING = "arc5500.cacheStats";
+
+  /** The setting giving the threads matching two directories. */
+  public static final String MATCH_THREADS_SETTING =
+      "arc5500.matchThreads";
+
+  /** The setting overlapping decoding, fingerprinting and matching. */
+  public static final String PIPELINE_SETTING = "arc5500.pipeline";
+
+  /** The setting giving the files a pipeline keeps open ahead. */
+  public static final String PIPELINE_QUEUE_SETTING =
+      "arc5500.pipelineQueue";
+
+  /** The default number of files a pipeline keeps open ahead. */
+  public static final int DEFAULT_PIPELINE_QUEUE = 4;
+
+  /** The setting allowing the Vector API distance kernel. */
+  public static final String SIMD_SETTING = "arc5500.simd";
+
+  /**
+   * The setting giving the number of the most distinctive seconds of
+   * the shorter file that must all be close before it is compared
+   * whole, 0 for its first second only.
+   */
+  public static final String ANCHORS_SETTING = "arc5500.anchors";
+
+  /** The setting writing the slow-path checks of matching. */
+  public static final String MATCH_STATS_SETTING = "arc5500.matchStats";
+
+  /** The setting selecting how the offsets of a match are searched. */
+  public static final String SEARCH_SETTING = "arc5500.search";
+
+  /** The search comparing the first second at every offset. */
+  public static final String SEARCH_SCAN = "scan";
+
+  /**
+   * The search computing the distance at every offset at once with
+   * FFT cross-correlation before comparing the candidates.
+   */
+  public static final String SEARCH_FFT = "fft";
+
+  /** The setting giving the number of concurrent lame decodes. */
+  public static final String DECODE_THREADS_SETTING =
+      "arc5500.decodeThreads";
+
+  /** The setting selecting how mp3 files are decoded. */
+  public static final String DECODE_SETTING = "arc5500.decode";
+
+  /** The decode mode writing a temporary wav file with lame. */
+  public static final String DECODE_FILE = "file";
+
+  /** The decode mode piping the mp3 file through lame. */
+  public static final String DECODE_PIPE = "pipe";
+
+  /**
+   * The decode mode decoding the mp3 file in the JVM, falling back to
+   * lame for the streams the decoder does not support.
+   */
+  public static final String DECODE_JAVA = "java";
 }
@@ -0,0 +1,177 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Class Decimator lowers the sample rate of a signal before it is
+ * transformed, since no frequency above the highest fingerprint range
+ * is used. It is a cascade of half-band FIR stages, each one halving
+ * the rate. A half-band filter has every other tap equal to zero and
+ * only every other output is computed, so a stage costs about a
+ * quarter of a plain FIR filter of the same length.
+ */
+public class Decimator {
+
+  /** The cached odd taps of the half-band stages, keyed by rate. */
+  private static final Map<String, double[]> STAGE_TAPS =
+      new ConcurrentHashMap<String, double[]>();
+
+  /** The odd taps, one side only, of every stage. */
+  private final double[][] stages;
+
+  /** The rate of the decimated signal. */
+  private final int outputRate;
+
+  /** The buffers between two stages. */
+  private double[][] scratch = {new double[0], new double[0]};
+
+  /**
+   * Instantiates a new decimator.
+   * 
+   * @param stages the odd taps of every stage
+   * @param outputRate the rate of the decimated signal
+   */
+  private Decimator(double[][] stages, int outputRate) {
+    this.stages = stages;
+    this.outputRate = outputRate;
+  }
+
+  /**
+   * Gets a decimator for the given rate with as many stages as
+   * possible while keeping the top frequency below the new Nyquist
+   * frequency. A decimator is not thread safe, every thread must get
+   * its own.
+   * 
+   * @param sampleRate the rate of the input signal
+   * @param topFreq the highest frequency that must be kept
+   * @return the decimator, or null if the rate cannot be lowered
+   */
+  public static Decimator forRate(int sampleRate, int topFreq) {
+    int count = 0;
+    for (int rate = sampleRate; rate > 4 * topFreq; rate /= 2) {
+      count++;
+    }
+    if (count == 0) return null;
+    double[][] stages = new double[count][];
+    int rate = sampleRate;
+    for (int stage = 0; stage < count; stage++, rate /= 2) {
+      stages[stage] = getStageTaps(rate, topFreq);
+    }
+    return new Decimator(stages, rate);
+  }
+
+  /**
+   * Gets the odd taps of a half-band stage, computing them on first
+   * use. The filter is a Hamming windowed sinc with its cutoff at a
+   * quarter of the rate. Frequencies between the top frequency and
+   * its mirror image around the new Nyquist frequency only alias above
+   * the top frequency, so that band is used as transition band.
+   * 
+   * @param rate the rate of the stage's input
+   * @param topFreq the highest frequency that must be kept
+   * @return the taps h[1], h[3], ... of the filter
+   */
+  private static double[] getStageTaps(int rate, int topFreq) {
+    String key = rate + Constants.SPACE + topFreq;
+    double[] taps = STAGE_TAPS.get(key);
+    if (taps != null) return taps;
+    double transition = (rate / 2.0 - 2.0 * topFreq) / rate;
+    // Hamming window needs about 3.3 / transition taps
+    int halfLength = (int) Math.ceil(3.3 / transition / 2);
+    if (halfLength % 2 == 0) halfLength++;
+    taps = new double[(halfLength + 1) / 2];
+    double sum = 0.0;
+    for (int j = 0; j < taps.length; j++) {
+      int k = 2 * j + 1;
+      double sinc = Math.sin(Math.PI * k / 2) / (Math.PI * k);
+      double window = 0.54 + 0.46 * Math.cos(Math.PI * k / halfLength);
+      taps[j] = sinc * window;
+      sum += 2 * taps[j];
+    }
+    // normalize to unit gain at DC, the center tap is 0.5
+    for (int j = 0; j < taps.length; j++) {
+      taps[j] *= 0.5 / sum;
+    }
+    STAGE_TAPS.put(key, taps);
+    return taps;
+  }
+
+  /**
+   * Gets the decimation factor.
+   * 
+   * @return the factor
+   */
+  public int getFactor() {
+    return 1 << stages.length;
+  }
+
+  /**
+   * Gets the rate of the decimated signal.
+   * 
+   * @return the output rate
+   */
+  public int getOutputRate() {
+    return outputRate;
+  }
+
+  /**
+   * Decimates a signal. Samples outside of the signal are taken as
+   * zeros.
+   * 
+   * @param input the input signal
+   * @param length the number of samples of the input
+   * @param output the decimated signal, at least length / factor + 1
+   *          values
+   * @return the number of samples of the decimated signal
+   */
+  public int decimate(double[] input, int length, double[] output) {
+    double[] source = input;
+    for (int stage = 0; stage < stages.length; stage++) {
+      // the last stage writes into the output, the others alternate
+      // between the scratch buffers
+      double[] target = output;
+      if (stage < stages.length - 1) {
+        int index = (source == scratch[0]) ? 1 : 0;
+        if (scratch[index].length < length) {
+          scratch[index] = new double[length];
+        }
+        target = scratch[index];
+      }
+      length = decimateByTwo(stages[stage], source, length, target);
+      source = target;
+    }
+    return length;
+  }
+
+  /**
+   * Runs one half-band stage and keeps every other output.
+   * 
+   * @param taps the odd taps of the stage
+   * @param input the input signal
+   * @param length the number of samples of the input
+   * @param output the decimated signal
+   * @return the number of samples of the decimated signal
+   */
+  private static int decimateByTwo(double[] taps, double[] input,
+      int length, double[] output) {
+    int outLength = (length + 1) / 2;
+    int reach = 2 * taps.length - 1;
+    for (int m = 0; m < outLength; m++) {
+      int center = 2 * m;
+      double sum = 0.5 * input[center];
+      if (center - reach >= 0 && center + reach < length) {
+        for (int j = 0, k = 1; j < taps.length; j++, k += 2) {
+          sum += taps[j] * (input[center - k] + input[center + k]);
+        }
+      } else {
+        // near the edges, samples outside of the signal are zeros
+        for (int j = 0, k = 1; j < taps.length; j++, k += 2) {
+          double before = (center - k >= 0) ? input[center - k] : 0.0;
+          double after = (center + k < length) ? input[center + k] : 0.0;
+          sum += taps[j] * (before + after);
+        }
+      }
+      output[m] = sum;
+    }
+    return outLength;
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * The Class DistanceKernel sums the squared errors between fingerprint
+ * values, the innermost loop of matching. The values of a fingerprint
+ * are compared flattened, row after row, and the error of every value
+ * is its shift times the inverse width of its frequency range, given
+ * by weights expanded to whole rows. The sums agree with those of a
+ * division by the widths within rounding, not bit for bit.
+ *
+ * This class sums one value after the other. When the Vector API
+ * kernel is built (buildscript.sh --simd) and the jdk.incubator.vector
+ * module is resolved (java_args="--add-modules jdk.incubator.vector"),
+ * {@link #forSettings()} returns it instead, see VectorDistanceKernel.
+ */
+public class DistanceKernel {
+
+  /** The Constant VECTOR_MODULE. */
+  private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+  /** The Constant VECTOR_KERNEL, the class of the vector kernel. */
+  private static final String VECTOR_KERNEL = "VectorDistanceKernel";
+
+  /** The Constant CHECK_LENGTH of the values a kernel is checked on. */
+  private static final int CHECK_LENGTH = 61;
+
+  /** The Constant CHECK_TOLERANCE of the sums of both kernels. */
+  private static final double CHECK_TOLERANCE = 1e-9;
+
+  /**
+   * Gets the kernel of a run: the vector kernel if it is built, its
+   * module resolved and arc5500.simd is not false, otherwise the
+   * scalar one.
+   *
+   * @return the kernel
+   */
+  public static DistanceKernel forSettings() {
+    DistanceKernel kernel =
+        Settings.getBoolean(Constants.SIMD_SETTING, true)
+            ? loadVectorKernel() : null;
+    return (kernel == null) ? new DistanceKernel() : kernel;
+  }
+
+  /**
+   * Loads the vector kernel, only linked once its module is known to
+   * be resolved, and checks it against the scalar kernel.
+   *
+   * @return the vector kernel, null if not available
+   */
+  private static DistanceKernel loadVectorKernel() {
+    if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+      return null;
+    }
+    try {
+      DistanceKernel kernel =
+          (DistanceKernel) Class.forName(VECTOR_KERNEL)
+              .getDeclaredConstructor().newInstance();
+      if (isConsistent(kernel)) return kernel;
+    } catch (Exception e) {
+      // not built with --simd
+    } catch (LinkageError e) {
+      // not supported by this JVM
+    }
+    return null;
+  }
+
+  /**
+   * Checks that a kernel gives the sum of the scalar kernel on values
+   * covering whole vectors and a remainder.
+   *
+   * @param kernel the kernel
+   * @return true, if the sums agree
+   */
+  private static boolean isConsistent(DistanceKernel kernel) {
+    int[] longer = new int[CHECK_LENGTH];
+    int[] shorter = new int[CHECK_LENGTH];
+    double[] weights = new double[CHECK_LENGTH];
+    for (int i = 0; i < CHECK_LENGTH; i++) {
+      longer[i] = i * 397 % 10007;
+      shorter[i] = -(i * 211 % 8009);
+      weights[i] = 1.0 / (i + 1);
+    }
+    double expected =
+        new DistanceKernel().getSquaredError(longer, 0, shorter, 0,
+            weights, CHECK_LENGTH, 0.0);
+    double actual =
+        kernel.getSquaredError(longer, 0, shorter, 0, weights,
+            CHECK_LENGTH, 0.0);
+    return Math.abs(actual - expected) <= CHECK_TOLERANCE * expected;
+  }
+
+  /**
+   * Gets the name of the kernel.
+   *
+   * @return the name
+   */
+  public String getName() {
+    return "scalar";
+  }
+
+  /**
+   * Sums the squared errors between two runs of fingerprint values,
+   * one after the other in order.
+   *
+   * @param longer the flattened longer fingerprint
+   * @param longerOffset the first value of longer compared
+   * @param shorter the flattened shorter fingerprint
+   * @param shorterOffset the first value of shorter compared
+   * @param weights the inverse weights of the values, from index 0
+   * @param length the number of values, at most the weights
+   * @param sum the sum of the squared errors before these values
+   * @return the sum of the squared errors
+   */
+  public double getSquaredError(int[] longer, int longerOffset,
+      int[] shorter, int shorterOffset, double[] weights, int length,
+      double sum) {
+    double error = 0.0;
+    for (int i = 0; i < length; i++) {
+      error =
+          (Math.abs(longer[longerOffset + i]) - Math
+              .abs(shorter[shorterOffset + i])) * weights[i];
+      sum += error * error;
+    }
+    return sum;
+  }
+}
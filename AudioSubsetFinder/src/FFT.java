@@ -1,7 +1,9 @@
 import java.lang.Math;
 
 /**
- * The Class FFT used to compute FFT of any input signal of Complex[]
+ * The Class FFT used to compute FFT of any input signal. The transform
+ * works in place on separate real and imaginary double[] buffers so
+ * that no object is created per sample or per butterfly.
  */
 public class FFT {
 
@@ -15,47 +17,69 @@ public class FFT {
    */
   public static Complex[] fft(Complex[] complexArr) {
     // N (as mentioned in formula of FFT): Length of the input signal
-
     int arrLength = complexArr.length;
-    // Return if the input signal's length is 1
-    if (arrLength == 1) return new Complex[] {complexArr[0]};
-
     // This case will not happen because we are padding the signal
-    if ((Math.log(arrLength) / Math.log(2)) % 1 != 0) {
+    if (!isPowerOfTwo(arrLength)) {
       return new Complex[] {complexArr[0]};
     }
-
-    // Store even placed frequency points from input signal
-    Complex[] even = new Complex[arrLength / 2];
-    for (int i = 0; i < arrLength / 2; i++) {
-      even[i] = complexArr[2 * i];
-    }
-    // Compute FFt on even placed frequency points
-    Complex[] complexEven = fft(even);
-
-    // Store odd placed frequency points from input signal
-    Complex[] odd = even;
-    for (int i = 0; i < arrLength / 2; i++) {
-      odd[i] = complexArr[2 * i + 1];
+    double[] real = new double[arrLength];
+    double[] imag = new double[arrLength];
+    for (int i = 0; i < arrLength; i++) {
+      real[i] = complexArr[i].getRealPart();
+      imag[i] = complexArr[i].getImaginaryPart();
     }
-
-    // Compute FFt on odd placed frequency points
-    Complex[] complexOdd = fft(odd);
-    // Create FFTSignal for given input signal
-    double phase = 0;
+    fft(real, imag);
     Complex[] fftSig = new Complex[arrLength];
-
-    for (int i = 0; i < arrLength / 2; i++) {
-      phase = 2 * i * Math.PI / arrLength;
-      Complex complex = new Complex(Math.cos(phase), Math.sin(phase));
-      fftSig[i] = complexEven[i].add(complex.multiply(complexOdd[i]));
-      fftSig[i + arrLength / 2] =
-          complexEven[i].subtract(complex.multiply(complexOdd[i]));
+    for (int i = 0; i < arrLength; i++) {
+      fftSig[i] = new Complex(real[i], imag[i]);
     }
     // Return FFT Signal
     return fftSig;
   }
 
+  /**
+   * This method calculates FFT in place for a signal given as its
+   * real and imaginary parts. It is the iterative radix-2
+   * Cooley-Tukey algorithm: the input is reordered by bit-reversal
+   * permutation and then combined by butterflies of growing size.
+   * The twiddle factor is exp(+2*PI*i*k/N), as in the original
+   * recursive implementation. The tables are taken from the cached
+   * FFTPlan of the signal's length. Ref :
+   * http://en.wikipedia.org/wiki/Cooley%E2%80%93Tukey_FFT_algorithm
+   * 
+   * @param real the real part of the signal, replaced by the real
+   *          part of the FFT
+   * @param imag the imaginary part of the signal, replaced by the
+   *          imaginary part of the FFT
+   */
+  public static void fft(double[] real, double[] imag) {
+    FFTPlan.forSize(real.length).transform(real, imag);
+  }
+
+  /**
+   * Checks if the given length is a power of 2.
+   * 
+   * @param length the length
+   * @return true, if it is a power of 2
+   */
+  public static boolean isPowerOfTwo(int length) {
+    return length > 0 && (length & (length - 1)) == 0;
+  }
+
+  /**
+   * Gets the closest (ceiling) power of 2 of the given length.
+   * 
+   * @param length the length
+   * @return the length after padding
+   */
+  public static int paddedLength(int length) {
+    int newlength = 1;
+    while (newlength < length) {
+      newlength <<= 1;
+    }
+    return newlength;
+  }
+
   /**
    * This method adds Padding to the signal array to make its length
    * is a power of 2. Complex(0.0, 0.0) will be the filled number for
@@ -67,10 +91,8 @@ public class FFT {
 
   public static Complex[] padding(Complex[] signal) {
     int length = signal.length;
-    // get the closest(ceiling) power of 2 of Log length of base 2.
-    int ceiling = (int) Math.ceil(Math.log(length) / Math.log(2));
     // the length after padding
-    int newlength = (int) Math.pow(2, ceiling);
+    int newlength = paddedLength(length);
 
     // initialize a new signal array with new length
     Complex[] paddedSignal = new Complex[newlength];
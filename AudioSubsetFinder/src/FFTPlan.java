@@ -0,0 +1,176 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Class FFTPlan holds the tables needed to compute an FFT of one
+ * size: the bit-reversal permutation and the twiddle factors. A plan
+ * is computed once per size and cached, it is never modified after
+ * construction so that the same plan can be shared by all threads.
+ */
+public class FFTPlan {
+
+  /** The cached plans, keyed by transform size. */
+  private static final Map<Integer, FFTPlan> PLANS =
+      new ConcurrentHashMap<Integer, FFTPlan>();
+
+  /** The transform size. */
+  private final int size;
+
+  /** The index each position is swapped with by bit-reversal. */
+  private final int[] bitReverse;
+
+  /** The cosines of the twiddle factors exp(+2*PI*i*k/N). */
+  private final double[] cos;
+
+  /** The sines of the twiddle factors exp(+2*PI*i*k/N). */
+  private final double[] sin;
+
+  /**
+   * Instantiates a new plan for the given size.
+   * 
+   * @param size the transform size, must be a power of 2
+   */
+  private FFTPlan(int size) {
+    this.size = size;
+    this.bitReverse = new int[size];
+    for (int i = 1, j = 0; i < size; i++) {
+      int bit = size >> 1;
+      for (; (j & bit) != 0; bit >>= 1) {
+        j ^= bit;
+      }
+      j ^= bit;
+      bitReverse[i] = j;
+    }
+    this.cos = new double[size / 2];
+    this.sin = new double[size / 2];
+    for (int k = 0; k < size / 2; k++) {
+      double phase = 2 * Math.PI * k / size;
+      cos[k] = Math.cos(phase);
+      sin[k] = Math.sin(phase);
+    }
+  }
+
+  /**
+   * Gets the plan for the given size, computing it on first use.
+   * 
+   * @param size the transform size, must be a power of 2
+   * @return the shared plan
+   */
+  public static FFTPlan forSize(int size) {
+    if (!FFT.isPowerOfTwo(size)) {
+      throw new IllegalArgumentException(
+          "FFT length must be a power of 2");
+    }
+    FFTPlan plan = PLANS.get(size);
+    if (plan == null) {
+      plan = new FFTPlan(size);
+      FFTPlan existing = PLANS.putIfAbsent(size, plan);
+      if (existing != null) plan = existing;
+    }
+    return plan;
+  }
+
+  /**
+   * Gets the transform size.
+   * 
+   * @return the size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * This method calculates FFT in place for a signal given as its
+   * real and imaginary parts, using the tables of this plan.
+   * 
+   * @param real the real part of the signal, replaced by the real
+   *          part of the FFT
+   * @param imag the imaginary part of the signal, replaced by the
+   *          imaginary part of the FFT
+   */
+  public void transform(double[] real, double[] imag) {
+    if (real.length != size || imag.length != size) {
+      throw new IllegalArgumentException("FFT length must be "
+          + size);
+    }
+    // Reorder the signal by bit-reversal permutation
+    for (int i = 1; i < size; i++) {
+      int j = bitReverse[i];
+      if (i < j) {
+        double temp = real[i];
+        real[i] = real[j];
+        real[j] = temp;
+        temp = imag[i];
+        imag[i] = imag[j];
+        imag[j] = temp;
+      }
+    }
+    // Combine the sub-transforms, doubling their size at every step.
+    // The twiddle factor of butterfly k at a step is entry
+    // k * (N / size) of the tables.
+    int stride = size >> 1;
+    for (int step = 2; step <= size; step <<= 1, stride >>= 1) {
+      int half = step >> 1;
+      for (int k = 0, twiddle = 0; k < half; k++, twiddle += stride) {
+        double c = cos[twiddle];
+        double s = sin[twiddle];
+        for (int even = k; even < size; even += step) {
+          int odd = even + half;
+          double oddReal = c * real[odd] - s * imag[odd];
+          double oddImag = c * imag[odd] + s * real[odd];
+          real[odd] = real[even] - oddReal;
+          imag[odd] = imag[even] - oddImag;
+          real[even] += oddReal;
+          imag[even] += oddImag;
+        }
+      }
+    }
+  }
+
+  /**
+   * This method calculates the FFT of a real signal of N = size
+   * samples through a complex FFT of N/2 points. The even samples are
+   * packed as the real part and the odd samples as the imaginary
+   * part, the half size transform gives their two spectra at once and
+   * they are combined with the twiddle factors of this plan. Only the
+   * non-redundant half of the spectrum, bins 0 to N/2, is produced.
+   * 
+   * @param packedReal the even samples, N/2 values; overwritten
+   * @param packedImag the odd samples, N/2 values; overwritten
+   * @param spectrumReal the real part of bins 0 to N/2, N/2 + 1
+   *          values
+   * @param spectrumImag the imaginary part of bins 0 to N/2, N/2 + 1
+   *          values
+   */
+  public void realTransform(double[] packedReal, double[] packedImag,
+      double[] spectrumReal, double[] spectrumImag) {
+    int half = size / 2;
+    if (half == 0 || spectrumReal.length <= half
+        || spectrumImag.length <= half) {
+      throw new IllegalArgumentException("Real FFT length must be "
+          + size);
+    }
+    forSize(half).transform(packedReal, packedImag);
+    // DC and Nyquist bins are real
+    spectrumReal[0] = packedReal[0] + packedImag[0];
+    spectrumImag[0] = 0.0;
+    spectrumReal[half] = packedReal[0] - packedImag[0];
+    spectrumImag[half] = 0.0;
+    for (int k = 1; k < half; k++) {
+      double ar = packedReal[k];
+      double ai = packedImag[k];
+      double br = packedReal[half - k];
+      double bi = packedImag[half - k];
+      // spectrum of the even samples
+      double evenReal = (ar + br) / 2;
+      double evenImag = (ai - bi) / 2;
+      // spectrum of the odd samples
+      double oddReal = (ai + bi) / 2;
+      double oddImag = (br - ar) / 2;
+      spectrumReal[k] =
+          evenReal + cos[k] * oddReal - sin[k] * oddImag;
+      spectrumImag[k] =
+          evenImag + cos[k] * oddImag + sin[k] * oddReal;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+/**
+ * The Class FFTWorkspace holds the buffers used by the real-input FFT,
+ * so that a thread can transform many signals of the same size
+ * without allocating new arrays for each of them.
+ */
+public class FFTWorkspace {
+
+  /** The workspace of the current thread. */
+  private static final ThreadLocal<FFTWorkspace> THREAD_WORKSPACE =
+      new ThreadLocal<FFTWorkspace>();
+
+  /** The plan used to transform the signal. */
+  private final FFTPlan plan;
+
+  /** The even samples of the signal being transformed. */
+  private final double[] packedReal;
+
+  /** The odd samples of the signal being transformed. */
+  private final double[] packedImag;
+
+  /** The real part of the half spectrum. */
+  private final double[] real;
+
+  /** The imaginary part of the half spectrum. */
+  private final double[] imaginary;
+
+  /**
+   * Instantiates a new workspace for transforms of the given size.
+   * 
+   * @param size the transform size, must be a power of 2 and at
+   *          least 2
+   */
+  public FFTWorkspace(int size) {
+    this.plan = FFTPlan.forSize(size);
+    this.packedReal = new double[size / 2];
+    this.packedImag = new double[size / 2];
+    this.real = new double[size / 2 + 1];
+    this.imaginary = new double[size / 2 + 1];
+  }
+
+  /**
+   * Gets the workspace of the current thread for the given size. The
+   * workspace is reused as long as the size does not change.
+   * 
+   * @param size the transform size, must be a power of 2 and at
+   *          least 2
+   * @return the workspace of the current thread
+   */
+  public static FFTWorkspace forThread(int size) {
+    FFTWorkspace workspace = THREAD_WORKSPACE.get();
+    if (workspace == null || workspace.size() != size) {
+      workspace = new FFTWorkspace(size);
+      THREAD_WORKSPACE.set(workspace);
+    }
+    return workspace;
+  }
+
+  /**
+   * Gets the transform size of this workspace.
+   * 
+   * @return the size
+   */
+  public int size() {
+    return plan.size();
+  }
+
+  /**
+   * Gets the real part of the half spectrum, bins 0 to size / 2.
+   * 
+   * @return the real part
+   */
+  public double[] getReal() {
+    return real;
+  }
+
+  /**
+   * Gets the imaginary part of the half spectrum, bins 0 to size / 2.
+   * 
+   * @return the imaginary part
+   */
+  public double[] getImaginary() {
+    return imaginary;
+  }
+
+  /**
+   * Transforms a real signal. The signal is padded with zeros up to
+   * the size of the workspace and its half spectrum is stored in the
+   * real and imaginary buffers.
+   * 
+   * @param signal the input signal
+   * @param length the number of samples of the signal to transform
+   */
+  public void transformReal(double[] signal, int length) {
+    int pairs = length / 2;
+    for (int i = 0; i < pairs; i++) {
+      packedReal[i] = signal[2 * i];
+      packedImag[i] = signal[2 * i + 1];
+    }
+    Arrays.fill(packedReal, pairs, packedReal.length, 0.0);
+    Arrays.fill(packedImag, pairs, packedImag.length, 0.0);
+    if (length % 2 == 1) {
+      packedReal[pairs] = signal[length - 1];
+    }
+    plan.realTransform(packedReal, packedImag, real, imaginary);
+  }
+}
@@ -2,9 +2,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The Class FileUtils.
@@ -52,77 +60,164 @@ public class FileUtils {
 
   /**
    * Method to store the Map of non-wave file and its
-   * canonical form.
+   * canonical form. The output file is created empty with a
+   * unique name, so files with the same name decoded at the
+   * same time, or by concurrent runs, never collide.
    * 
    * @param path the path
    * @return the output file path
+   * @throws IOException Signals that an I/O exception has
+   *           occurred.
    */
-  public static String getOutputFilePath(String path) {
-    StringBuilder outputFilePath = new StringBuilder();
+  public static String getOutputFilePath(String path)
+      throws IOException {
     String[] splittedPath = path.split(Constants.SLASH);
-    outputFilePath.append(Constants.OUTPUT_FILE_LOCATION);
-    outputFilePath.append(Constants.SLASH);
-    outputFilePath.append(splittedPath[splittedPath.length - 1]
-        .split("\\.")[0]);
-    outputFilePath.append(System.currentTimeMillis());
-    outputFilePath.append(Constants.DOT_WAV);
-    return outputFilePath.toString();
+    return createTempFile(
+        splittedPath[splittedPath.length - 1].split("\\.")[0],
+        Constants.DOT_WAV);
+  }
+
+  /**
+   * Creates an empty temporary file with a unique name in the
+   * output location.
+   * 
+   * @param name the name the file starts with
+   * @param extension the extension, with its dot
+   * @return the path of the file
+   * @throws IOException Signals that an I/O exception has
+   *           occurred.
+   */
+  public static String createTempFile(String name, String extension)
+      throws IOException {
+    // If output location does not exist, create a directory
+    File dir = new File(Constants.OUTPUT_FILE_LOCATION);
+    if (!dir.exists()) dir.mkdirs();
+    // createTempFile needs a prefix of 3 characters at least
+    return File.createTempFile(name + "___", extension, dir)
+        .getAbsolutePath();
   }
 
   /**
-   * Method to convert a set of .mp3 files to .wav.
+   * Method to convert a set of .mp3 files to .wav. Up to
+   * arc5500.decodeThreads lame processes run at a time, by
+   * default one per processor. Their output is discarded by
+   * the operating system, so no thread drains it.
    * 
    * @param filesToConvert the files to convert
-   * @return : true if conversion occurred without any
-   *         error, else false
    * @throws IOException Signals that an I/O exception has
    *           occurred.
    */
   public static void convertToWav(Map<String, String> filesToConvert)
       throws IOException {
-    Process proc = null;
-    String cmd = "";
+    if (filesToConvert.isEmpty()) return;
     // If output location does not exist, create a directory
     File dir = new File(Constants.OUTPUT_FILE_LOCATION);
-    if (!dir.exists()) dir.mkdir();
-    for (Map.Entry<String, String> entry : filesToConvert.entrySet()) {
-      cmd =
-          Constants.LAME_LOCATION + Constants.SPACE
-              + Constants.LAME_DECODE + Constants.SPACE
-              + entry.getKey() + Constants.SPACE + entry.getValue();
-      try {
-        // Attach the process to execute the command
-        proc = Runtime.getRuntime().exec(cmd);
-        // Keep polling the errorStream of the spawned
-        // process for any data:
-        StreamReaderThread errorStreamReaderThread =
-            new StreamReaderThread(proc.getErrorStream());
-        // Keep polling the OutputStream of the spawned
-        // process for any data:
-        StreamReaderThread outputStreamReaderThread =
-            new StreamReaderThread(proc.getInputStream());
-        // Start the threads to poll the streams
-        errorStreamReaderThread.start();
-        outputStreamReaderThread.start();
-        // Wait until the process has terminated
-        proc.waitFor();
-      } catch (Exception e) {}
+    if (!dir.exists()) dir.mkdirs();
+    int threads =
+        Math.max(1, Math.min(filesToConvert.size(), Settings.getInt(
+            Constants.DECODE_THREADS_SETTING, Runtime.getRuntime()
+                .availableProcessors())));
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Object>> decodes = new ArrayList<Future<Object>>();
+      for (final Map.Entry<String, String> entry : filesToConvert
+          .entrySet()) {
+        decodes.add(pool.submit(new Callable<Object>() {
+          public Object call() throws Exception {
+            decode(entry.getKey(), entry.getValue());
+            return null;
+          }
+        }));
+      }
+      // Wait until all the processes have terminated
+      for (Future<Object> decode : decodes) {
+        try {
+          decode.get();
+        } catch (ExecutionException e) {
+          // a failed decode leaves an empty wav, which never
+          // matches and is not stored
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    } finally {
+      pool.shutdownNow();
     }
   }
 
   /**
-   * Read file bytes.
-   *
-   * @param file the file
-   * @return the byte[] of the file
+   * Decodes one .mp3 file to .wav with lame. If lame fails, the wav
+   * file is emptied, so that a partial file is never fingerprinted.
+   * 
+   * @param mp3Path the path of the mp3 file
+   * @param wavPath the path of the wav file
    * @throws Exception the exception
    */
-  public static byte[] readFileBytes(File file) throws Exception {
-    RandomAccessFile randomAccessFile =
-        new RandomAccessFile(file, "r");
-    byte[] fileBytes = new byte[(int) randomAccessFile.length()];
-    randomAccessFile.read(fileBytes);
-    randomAccessFile.close();
-    return fileBytes;
+  private static void decode(String mp3Path, String wavPath)
+      throws Exception {
+    ProcessBuilder builder =
+        new ProcessBuilder(Constants.LAME_LOCATION,
+            Constants.LAME_DECODE, mp3Path, wavPath);
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+    // Wait until the process has terminated
+    int exitValue = builder.start().waitFor();
+    if (exitValue != 0) {
+      new FileOutputStream(wavPath).close();
+      throw new IOException("lame exited with " + exitValue + " on "
+          + mp3Path);
+    }
+  }
+
+  /**
+   * Starts lame decoding an .mp3 file through pipes, nothing is
+   * written to disk. The file is fed to the standard input of
+   * lame from a file channel by a daemon thread, the wav output
+   * is read from the standard output of the process.
+   * 
+   * @param mp3File the mp3 file, whatever its extension
+   * @return the lame process
+   * @throws IOException Signals that an I/O exception has
+   *           occurred.
+   */
+  public static Process startPipeDecode(final File mp3File)
+      throws IOException {
+    ProcessBuilder builder =
+        new ProcessBuilder(Constants.LAME_LOCATION,
+            Constants.LAME_DECODE, Constants.LAME_PIPE,
+            Constants.LAME_PIPE);
+    builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+    final Process process = builder.start();
+    Thread feeder = new Thread(new Runnable() {
+      public void run() {
+        FileChannel source = null;
+        WritableByteChannel destination =
+            Channels.newChannel(process.getOutputStream());
+        try {
+          source = new FileInputStream(mp3File).getChannel();
+          long position = 0;
+          long size = source.size();
+          while (position < size) {
+            long sent =
+                source.transferTo(position, size - position,
+                    destination);
+            if (sent <= 0) break;
+            position += sent;
+          }
+        } catch (IOException e) {
+          // lame stopped early, e.g. the file was closed
+        } finally {
+          try {
+            if (source != null) source.close();
+            // end of input for lame
+            destination.close();
+          } catch (IOException e) {}
+        }
+      }
+    });
+    feeder.setDaemon(true);
+    feeder.start();
+    return process;
   }
 }
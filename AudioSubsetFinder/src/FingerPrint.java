@@ -0,0 +1,64 @@
+/**
+ * The Class FingerPrint holds the fingerprint of a channel, a row of
+ * frequencies per second, and the same values flattened row after
+ * row, which the matcher compares in place. A fingerprint is
+ * flattened once, when it is computed or loaded, rather than for
+ * every pair it is matched in.
+ */
+public final class FingerPrint {
+
+  /** The fingerprint of a missing channel, e.g. right of mono files. */
+  public static final FingerPrint EMPTY = new FingerPrint(new int[0][0]);
+
+  /** The rows, one per second. */
+  private final int[][] rows;
+
+  /** The values of the rows, row after row. */
+  private final int[] flattened;
+
+  /**
+   * Instantiates a new fingerprint, flattening its rows.
+   *
+   * @param rows the rows, one per second, all of the same length
+   */
+  public FingerPrint(int[][] rows) {
+    this.rows = rows;
+    int columns = (rows.length == 0) ? 0 : rows[0].length;
+    flattened = new int[rows.length * columns];
+    for (int row = 0; row < rows.length; row++) {
+      System.arraycopy(rows[row], 0, flattened, row * columns, columns);
+    }
+  }
+
+  /**
+   * Gets the fingerprints of every channel of a file.
+   *
+   * @param channels the rows of every channel
+   * @return the fingerprint of every channel
+   */
+  public static FingerPrint[] of(int[][][] channels) {
+    FingerPrint[] fingerPrints = new FingerPrint[channels.length];
+    for (int c = 0; c < channels.length; c++) {
+      fingerPrints[c] = new FingerPrint(channels[c]);
+    }
+    return fingerPrints;
+  }
+
+  /**
+   * Gets the rows, one per second.
+   *
+   * @return the rows
+   */
+  public int[][] getRows() {
+    return rows;
+  }
+
+  /**
+   * Gets the values of the rows, row after row.
+   *
+   * @return the flattened rows
+   */
+  public int[] getFlattened() {
+    return flattened;
+  }
+}
@@ -0,0 +1,213 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The Class FingerPrintCache keeps the fingerprints computed during a
+ * run within a budget of bytes, evicting the least recently used
+ * ones first. It is safe to share between threads, and a fingerprint
+ * is computed only once: a thread asking for a fingerprint that is
+ * being computed waits for it instead of computing it again. Hits,
+ * misses and evictions are counted.
+ */
+public class FingerPrintCache {
+
+  /** The Constant ARRAY_HEADER_BYTES, the size of an array header. */
+  private final static int ARRAY_HEADER_BYTES = 16;
+
+  /** The Constant REFERENCE_BYTES, the size of a reference. */
+  private final static int REFERENCE_BYTES = 4;
+
+  /** The budget in bytes. */
+  private final long maxBytes;
+
+  /** The entries in least recently used order. */
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /** The bytes of the computed entries. */
+  private long bytes;
+
+  /** The hits. */
+  private long hits;
+
+  /** The misses. */
+  private long misses;
+
+  /** The evictions. */
+  private long evictions;
+
+  /**
+   * The Class Entry is a fingerprint being computed or computed.
+   */
+  private static class Entry {
+
+    /** The task computing the fingerprint. */
+    private final FutureTask<FingerPrint[]> task;
+
+    /** The bytes of the fingerprint, 0 until it is computed. */
+    private long bytes;
+
+    /**
+     * Instantiates a new entry.
+     * 
+     * @param task the task computing the fingerprint
+     */
+    private Entry(FutureTask<FingerPrint[]> task) {
+      this.task = task;
+    }
+  }
+
+  /**
+   * Instantiates a new fingerprint cache.
+   * 
+   * @param maxBytes the budget in bytes
+   */
+  public FingerPrintCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Gets the cache selected for this run by the arc5500.cacheMegabytes
+   * setting.
+   * 
+   * @return the fingerprint cache
+   */
+  public static FingerPrintCache fromSettings() {
+    long megabytes =
+        Settings.getInt(Constants.CACHE_MEGABYTES_SETTING,
+            Constants.DEFAULT_CACHE_MEGABYTES);
+    return new FingerPrintCache(Math.max(0, megabytes) << 20);
+  }
+
+  /**
+   * Gets a fingerprint, computing it on a miss. Only one thread
+   * computes the fingerprint of a key, the others wait for it. A
+   * failed computation is not cached.
+   * 
+   * @param key the key of the fingerprint
+   * @param loader computes the fingerprint on a miss
+   * @return the fingerprint of every channel
+   * @throws Exception the exception thrown by the loader
+   */
+  public FingerPrint[] get(String key, Callable<FingerPrint[]> loader)
+      throws Exception {
+    Entry entry;
+    boolean isOwner = false;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry != null) {
+        hits++;
+      } else {
+        misses++;
+        entry = new Entry(new FutureTask<FingerPrint[]>(loader));
+        entries.put(key, entry);
+        isOwner = true;
+      }
+    }
+    if (isOwner) {
+      entry.task.run();
+      added(key, entry);
+    }
+    try {
+      return entry.task.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      throw e;
+    }
+  }
+
+  /**
+   * Accounts for a computed entry and evicts the least recently used
+   * entries until the cache fits in its budget again. Entries still
+   * being computed are never evicted.
+   * 
+   * @param key the key of the entry
+   * @param entry the computed entry
+   */
+  private synchronized void added(String key, Entry entry) {
+    FingerPrint[] value;
+    try {
+      value = entry.task.get();
+    } catch (Exception e) {
+      // let the next caller try again
+      if (entries.get(key) == entry) entries.remove(key);
+      return;
+    }
+    if (entries.get(key) != entry) return;
+    entry.bytes = sizeOf(value);
+    bytes += entry.bytes;
+    Iterator<Map.Entry<String, Entry>> iterator =
+        entries.entrySet().iterator();
+    while (bytes > maxBytes && iterator.hasNext()) {
+      Entry eldest = iterator.next().getValue();
+      if (!eldest.task.isDone()) continue;
+      iterator.remove();
+      bytes -= eldest.bytes;
+      evictions++;
+    }
+  }
+
+  /**
+   * Estimates the heap bytes of a fingerprint, its rows and their
+   * flattened copy.
+   * 
+   * @param fingerPrints the fingerprint of every channel
+   * @return the bytes
+   */
+  private static long sizeOf(FingerPrint[] fingerPrints) {
+    long size =
+        ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES
+            * fingerPrints.length;
+    for (FingerPrint fingerPrint : fingerPrints) {
+      int[][] rows = fingerPrint.getRows();
+      size += ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES
+          * rows.length;
+      for (int[] row : rows) {
+        size += ARRAY_HEADER_BYTES + 4L * row.length;
+      }
+      size += ARRAY_HEADER_BYTES + 4L * fingerPrint.getFlattened().length;
+    }
+    return size;
+  }
+
+  /**
+   * Gets the hits.
+   * 
+   * @return the hits
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Gets the misses.
+   * 
+   * @return the misses
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Gets the evictions.
+   * 
+   * @return the evictions
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Gets the bytes of the cached fingerprints.
+   * 
+   * @return the bytes
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+}
@@ -0,0 +1,154 @@
+/**
+ * The Class FingerPrintCorrelator computes the weighted squared error
+ * between a shorter fingerprint and the rows of a longer one at every
+ * offset at once, in O(n log n) instead of O(n * m). With a and b the
+ * weighted values of a window and of the shorter fingerprint,
+ * ||a - b||^2 = ||a||^2 + ||b||^2 - 2 a.b: the window energies come
+ * from prefix sums over the rows, and the dot products of all the
+ * windows are the cross-correlation of every column, computed with
+ * real FFTs and summed in the frequency domain before a single inverse
+ * transform.
+ *
+ * The values of every column are centered on the mean of the shorter
+ * fingerprint first, which leaves the errors unchanged but keeps the
+ * terms small, so that little precision is lost when they are
+ * subtracted.
+ */
+public class FingerPrintCorrelator {
+
+  /** The smallest transform, the real FFT needs two points at least. */
+  private static final int MIN_SIZE = 4;
+
+  /**
+   * Instantiates nothing, the class only holds static methods.
+   */
+  private FingerPrintCorrelator() {}
+
+  /**
+   * Gets the sum of the squared weighted errors between the shorter
+   * fingerprint and the rows of the longer one from every offset. The
+   * error of a value is the difference of the absolute values times
+   * the weight of its column. The sums are exact up to rounding
+   * errors of the transforms.
+   *
+   * @param longer the longer fingerprint
+   * @param shorter the shorter fingerprint, not longer than longer
+   * @param weights the weight of every column, from index 0
+   * @return the sum at every offset from 0 to longer.length -
+   *         shorter.length
+   */
+  public static double[] getSquaredErrors(int[][] longer,
+      int[][] shorter, double[] weights) {
+    int longRows = longer.length;
+    int shortRows = shorter.length;
+    int columns = shorter[0].length;
+    // the correlation does not wrap around with a transform as long
+    // as the longer fingerprint
+    int size = Math.max(MIN_SIZE, FFT.paddedLength(longRows));
+    FFTPlan plan = FFTPlan.forSize(size);
+    int half = size / 2;
+    double[] longEnergy = new double[longRows + 1];
+    double shortEnergy = 0.0;
+    double[] productReal = new double[half + 1];
+    double[] productImag = new double[half + 1];
+    double[] packedReal = new double[half];
+    double[] packedImag = new double[half];
+    double[] longReal = new double[half + 1];
+    double[] longImag = new double[half + 1];
+    double[] shortReal = new double[half + 1];
+    double[] shortImag = new double[half + 1];
+    double[] signal = new double[size];
+    for (int c = 0; c < columns; c++) {
+      double mean = 0.0;
+      for (int row = 0; row < shortRows; row++) {
+        mean += Math.abs(shorter[row][c]);
+      }
+      mean /= shortRows;
+      // the weighted and centered values of the column
+      for (int row = 0; row < longRows; row++) {
+        signal[row] = (Math.abs(longer[row][c]) - mean) * weights[c];
+        longEnergy[row + 1] += signal[row] * signal[row];
+      }
+      java.util.Arrays.fill(signal, longRows, size, 0.0);
+      transform(plan, signal, packedReal, packedImag, longReal,
+          longImag);
+      for (int row = 0; row < shortRows; row++) {
+        signal[row] = (Math.abs(shorter[row][c]) - mean) * weights[c];
+        shortEnergy += signal[row] * signal[row];
+      }
+      java.util.Arrays.fill(signal, shortRows, size, 0.0);
+      transform(plan, signal, packedReal, packedImag, shortReal,
+          shortImag);
+      // the spectrum of the correlation is L * conj(S)
+      for (int k = 0; k <= half; k++) {
+        productReal[k] +=
+            longReal[k] * shortReal[k] + longImag[k] * shortImag[k];
+        productImag[k] +=
+            longImag[k] * shortReal[k] - longReal[k] * shortImag[k];
+      }
+    }
+    // the energy of every window from the prefix sums of the rows
+    for (int row = 0; row < longRows; row++) {
+      longEnergy[row + 1] += longEnergy[row];
+    }
+    double[] dotProducts = inverse(plan, productReal, productImag);
+    double[] errors = new double[longRows - shortRows + 1];
+    for (int i = 0; i < errors.length; i++) {
+      errors[i] =
+          longEnergy[i + shortRows] - longEnergy[i] + shortEnergy - 2
+              * dotProducts[i];
+    }
+    return errors;
+  }
+
+  /**
+   * Transforms a real signal to its half spectrum.
+   *
+   * @param plan the plan of the size of the signal
+   * @param signal the signal
+   * @param packedReal the buffer of the even samples
+   * @param packedImag the buffer of the odd samples
+   * @param real receives the real part of bins 0 to size / 2
+   * @param imag receives the imaginary part of bins 0 to size / 2
+   */
+  private static void transform(FFTPlan plan, double[] signal,
+      double[] packedReal, double[] packedImag, double[] real,
+      double[] imag) {
+    for (int i = 0; i < packedReal.length; i++) {
+      packedReal[i] = signal[2 * i];
+      packedImag[i] = signal[2 * i + 1];
+    }
+    plan.realTransform(packedReal, packedImag, real, imag);
+  }
+
+  /**
+   * Transforms the half spectrum of a real signal back to the signal.
+   * The plan transforms with exp(+2*PI*i*k/N), so the inverse is the
+   * conjugate of the transform of the conjugate spectrum, over N.
+   *
+   * @param plan the plan of the size of the signal
+   * @param real the real part of bins 0 to size / 2
+   * @param imag the imaginary part of bins 0 to size / 2
+   * @return the signal
+   */
+  private static double[] inverse(FFTPlan plan, double[] real,
+      double[] imag) {
+    int size = plan.size();
+    double[] signalReal = new double[size];
+    double[] signalImag = new double[size];
+    for (int k = 0; k <= size / 2; k++) {
+      signalReal[k] = real[k];
+      signalImag[k] = -imag[k];
+    }
+    // the spectrum of a real signal is Hermitian
+    for (int k = size / 2 + 1; k < size; k++) {
+      signalReal[k] = real[size - k];
+      signalImag[k] = imag[size - k];
+    }
+    plan.transform(signalReal, signalImag);
+    for (int i = 0; i < size; i++) {
+      signalReal[i] /= size;
+    }
+    return signalReal;
+  }
+}
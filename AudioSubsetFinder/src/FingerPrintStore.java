@@ -0,0 +1,362 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Class FingerPrintStore keeps fingerprints on disk between runs,
+ * in the directory given by the arc5500.cacheDir setting. Entries are
+ * keyed by the SHA-256 of the content of the input file, so renamed or
+ * copied files share one entry, and by the fingerprint algorithm, so
+ * entries computed with other settings or an older algorithm are never
+ * read. Hashing a file is skipped when its size and modification time
+ * match the ones recorded in the index of the store.
+ * 
+ * An entry is a small binary file: a magic number, the layout version,
+ * the algorithm, the number of channels, rows and columns, then every
+ * frequency as an unsigned 16 bit value (the highest range ends at
+ * 10 kHz). Entries are written to a temporary file and renamed, so
+ * concurrent runs never read half an entry.
+ */
+public class FingerPrintStore {
+
+  /** The Constant MAGIC, "ARCF". */
+  private final static int MAGIC = 0x41524346;
+
+  /** The Constant VERSION of the layout of the entries. */
+  private final static int VERSION = 1;
+
+  /** The Constant ENTRY_SUFFIX. */
+  private final static String ENTRY_SUFFIX = ".fp";
+
+  /** The Constant INDEX_DIR holding the size and time of files. */
+  private final static String INDEX_DIR = "index";
+
+  /** The Constant HASH_ALGORITHM. */
+  private final static String HASH_ALGORITHM = "SHA-256";
+
+  /** The directory of the store. */
+  private final File dir;
+
+  /** The name of the fingerprint algorithm and its settings. */
+  private final String algorithm;
+
+  /** The content hashes already known in this run, by path. */
+  private final Map<String, String> hashes =
+      new ConcurrentHashMap<String, String>();
+
+  /**
+   * Instantiates a new fingerprint store.
+   * 
+   * @param dir the directory of the store
+   * @param algorithm the name of the fingerprint algorithm
+   */
+  private FingerPrintStore(File dir, String algorithm) {
+    this.dir = dir;
+    this.algorithm = algorithm;
+  }
+
+  /**
+   * Gets the store selected for this run by the arc5500.cacheDir
+   * setting.
+   * 
+   * @param algorithm the name of the fingerprint algorithm and of the
+   *          settings that change fingerprints
+   * @return the store, or null if no directory is set or it cannot be
+   *         created
+   */
+  public static FingerPrintStore fromSettings(String algorithm) {
+    String path =
+        Settings.getString(Constants.CACHE_DIR_SETTING, null);
+    if (path == null) return null;
+    File dir = new File(path);
+    new File(dir, INDEX_DIR).mkdirs();
+    if (!dir.isDirectory()) return null;
+    return new FingerPrintStore(dir, algorithm);
+  }
+
+  /**
+   * Checks if the store has the fingerprints of a file.
+   * 
+   * @param file the input file
+   * @param kind the kind of fingerprints, e.g. channels or mid
+   * @return true, if an entry exists for the content of the file
+   */
+  public boolean contains(File file, String kind) {
+    String hash = getHash(file);
+    return hash != null && getEntry(hash, kind).isFile();
+  }
+
+  /**
+   * Loads the fingerprints of a file.
+   * 
+   * @param file the input file
+   * @param kind the kind of fingerprints, e.g. channels or mid
+   * @return the fingerprint of every channel, or null if the store
+   *         has no valid entry for the content of the file
+   */
+  public int[][][] load(File file, String kind) {
+    String hash = getHash(file);
+    if (hash == null) return null;
+    File entry = getEntry(hash, kind);
+    if (!entry.isFile()) return null;
+    DataInputStream in = null;
+    try {
+      in =
+          new DataInputStream(new BufferedInputStream(
+              new FileInputStream(entry)));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION
+          || !in.readUTF().equals(algorithm)) {
+        return null;
+      }
+      int channels = in.readInt();
+      int rows = in.readInt();
+      int columns = in.readInt();
+      // a damaged size must not allocate more than the entry holds
+      if (channels < 1 || rows < 0 || columns < 0
+          || 2L * channels * rows * columns > entry.length()) {
+        return null;
+      }
+      int[][][] fingerPrints = new int[channels][rows][columns];
+      for (int[][] fingerPrint : fingerPrints) {
+        for (int[] row : fingerPrint) {
+          for (int i = 0; i < row.length; i++) {
+            row[i] = in.readChar();
+          }
+        }
+      }
+      return fingerPrints;
+    } catch (IOException e) {
+      // a damaged entry is a miss, it is overwritten later
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+  /**
+   * Saves the fingerprints of a file. Empty fingerprints are not
+   * saved: they come from a file that could not be decoded, and an
+   * entry would keep it from matching in every later run.
+   * 
+   * @param file the input file
+   * @param kind the kind of fingerprints, e.g. channels or mid
+   * @param fingerPrints the fingerprint of every channel
+   */
+  public void save(File file, String kind, int[][][] fingerPrints) {
+    if (fingerPrints.length == 0 || fingerPrints[0].length == 0) {
+      return;
+    }
+    String hash = getHash(file);
+    if (hash == null) return;
+    int rows = fingerPrints[0].length;
+    int columns = fingerPrints[0][0].length;
+    DataOutputStream out = null;
+    File temp = null;
+    try {
+      temp = File.createTempFile(hash, null, dir);
+      out =
+          new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(temp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(algorithm);
+      out.writeInt(fingerPrints.length);
+      out.writeInt(rows);
+      out.writeInt(columns);
+      for (int[][] fingerPrint : fingerPrints) {
+        for (int[] row : fingerPrint) {
+          for (int value : row) {
+            out.writeChar(value);
+          }
+        }
+      }
+      out.close();
+      out = null;
+      move(temp, getEntry(hash, kind));
+      temp = null;
+    } catch (IOException e) {
+      // the store is only an optimization
+    } finally {
+      close(out);
+      if (temp != null) temp.delete();
+    }
+  }
+
+  /**
+   * Gets the entry file of a content hash.
+   * 
+   * @param hash the content hash
+   * @param kind the kind of fingerprints
+   * @return the entry file
+   */
+  private File getEntry(String hash, String kind) {
+    return new File(dir, hash + Constants.DOT + kind + Constants.DOT
+        + algorithm + ENTRY_SUFFIX);
+  }
+
+  /**
+   * Gets the content hash of a file. The index of the store records
+   * the size, modification time and hash of every file hashed, so an
+   * unchanged file is hashed only once.
+   * 
+   * @param file the input file
+   * @return the hash in hexadecimal, or null if the file cannot be
+   *         read
+   */
+  private String getHash(File file) {
+    String path = file.getAbsolutePath();
+    String hash = hashes.get(path);
+    if (hash != null) return hash;
+    long size = file.length();
+    long modified = file.lastModified();
+    File index = new File(new File(dir, INDEX_DIR), digest(path));
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new FileInputStream(index));
+      if (in.readLong() == size && in.readLong() == modified) {
+        hash = in.readUTF();
+      }
+    } catch (IOException e) {
+      // not indexed yet
+    } finally {
+      close(in);
+    }
+    if (hash == null) {
+      hash = hashContent(file);
+      if (hash == null) return null;
+      writeIndex(index, size, modified, hash);
+    }
+    hashes.put(path, hash);
+    return hash;
+  }
+
+  /**
+   * Records the size, modification time and hash of a file.
+   * 
+   * @param index the index file of the path
+   * @param size the size of the file
+   * @param modified the modification time of the file
+   * @param hash the content hash
+   */
+  private void writeIndex(File index, long size, long modified,
+      String hash) {
+    DataOutputStream out = null;
+    File temp = null;
+    try {
+      temp = File.createTempFile(index.getName(), null, dir);
+      out = new DataOutputStream(new FileOutputStream(temp));
+      out.writeLong(size);
+      out.writeLong(modified);
+      out.writeUTF(hash);
+      out.close();
+      out = null;
+      move(temp, index);
+      temp = null;
+    } catch (IOException e) {
+      // the file is hashed again next time
+    } finally {
+      close(out);
+      if (temp != null) temp.delete();
+    }
+  }
+
+  /**
+   * Hashes the content of a file.
+   * 
+   * @param file the file
+   * @return the hash in hexadecimal, or null if the file cannot be
+   *         read
+   */
+  private static String hashContent(File file) {
+    InputStream in = null;
+    try {
+      MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+      in = new FileInputStream(file);
+      byte[] buffer = new byte[1 << 16];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+      return toHex(digest.digest());
+    } catch (Exception e) {
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+  /**
+   * Hashes a string, used to name the index file of a path.
+   * 
+   * @param value the string
+   * @return the hash in hexadecimal
+   */
+  private static String digest(String value) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+      return toHex(digest.digest(value.getBytes("UTF-8")));
+    } catch (Exception e) {
+      // every JVM has SHA-256 and UTF-8
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Converts bytes to hexadecimal.
+   * 
+   * @param bytes the bytes
+   * @return the hexadecimal string
+   */
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+      hex.append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Renames a complete temporary file to its final name, atomically
+   * where the file system allows it.
+   * 
+   * @param source the temporary file
+   * @param target the final file
+   * @throws IOException Signals that an I/O exception has
+   *           occurred.
+   */
+  private static void move(File source, File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      Files.move(source.toPath(), target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Closes a stream, ignoring errors.
+   * 
+   * @param stream the stream, may be null
+   */
+  private static void close(Closeable stream) {
+    if (stream == null) return;
+    try {
+      stream.close();
+    } catch (IOException e) {}
+  }
+}
@@ -1,23 +1,18 @@
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * The Class for fingerprinting .wav files.
  * 
  */
 public class FingerPrintWav {
-  /** The Constant DATA_CHUNK_BYTE. */
-  private final static byte[] DATA_CHUNK_BYTE = {0x64, 0x61, 0x74,
-      0x61};
-  /** The Constant FMT_CHUNK_BYTE. */
-  private final static byte[] FMT_CHUNK_BYTE = {0x66, 0x6d, 0x74,
-      0x20};
-  /** The Constant CHANNEL_OFFSET. */
-  private final static int CHANNEL_OFFSET = 10;
-  /** The Constant BYTES_PER_SEC_OFFSET. */
-  private final static int BYTES_PER_SEC_OFFSET = 16;
-  /** The Constant BITS_PER_SAMP_OFFSET. */
-  private final static int BITS_PER_SAMP_OFFSET = 22;
   /** The Constant START_FREQ. */
   private final static int START_FREQ = 30;
   /**
@@ -32,6 +27,21 @@ public class FingerPrintWav {
    * and any one second fingerprints long file.
    */
   private static final double THRESHHOLD_HIGH = 0.4;
+  /**
+   * The Constant FFT_TOLERANCE allowed on the distances of the FFT
+   * search, far above their rounding errors, so that no offset that
+   * matches is left out.
+   */
+  private static final double FFT_TOLERANCE = 1e-4;
+  /**
+   * The Constant RARITY_BIN, the width of the weighted values counted
+   * together when the rarity of a second is estimated.
+   */
+  private static final double RARITY_BIN = THRESHHOLD_HIGH;
+  /** The Constant RARITY_BINS, the last one holds the larger values. */
+  private static final int RARITY_BINS = 128;
+  /** The Constant FIRST_SECOND, the anchor of the legacy matcher. */
+  private static final int[] FIRST_SECOND = new int[] {0};
   /** The Constant FREQRANGE. */
   private static final int[] FREQRANGE = new int[] {2000, 2700, 2800,
       2900, 3000, 3100, 3200, 3300, 3400, 3500, 3600, 3700, 3800,
@@ -39,310 +49,482 @@ public class FingerPrintWav {
       7000, 8000, 9000, 10000};
 
   /**
-   * Gets the wav file's body or header.
+   * The rows of a candidate compared between two checks of its
+   * distance, 216 values: a whole number of vectors.
+   */
+  private static final int BLOCK_ROWS = 8;
+
+  /**
+   * The Constant WEIGHTS, the inverse width of every frequency
+   * range repeated for BLOCK_ROWS rows: the error of a peak is its
+   * shift in Hz over the width of its range. Multiplying by the
+   * inverse rounds differently from dividing by the width, so the
+   * distances agree with those of a division within rounding, a few
+   * units in the last place, not bit for bit: a distance that falls
+   * on a threshold to the last bit may land on either side.
+   */
+  private static final double[] WEIGHTS = getWeights();
+
+  /**
+   * The version of the fingerprint algorithm, to be raised whenever
+   * a change gives other fingerprints for the same settings, so that
+   * stored fingerprints are computed again.
+   */
+  private static final int ALGORITHM_VERSION = 1;
+
+  /** The seconds fingerprinted per batch of a piped file. */
+  private static final int PIPED_BATCH_SECONDS = 64;
+
+  /** The tasks per fingerprinting thread a file is split into. */
+  private static final int TASKS_PER_THREAD = 8;
+
+  /** The fewest seconds of a task, which sets up its transform. */
+  private static final int MIN_TASK_SECONDS = 4;
+
+  /** The frame policy of the fingerprint path. */
+  private final FramePolicy framePolicy = FramePolicy.fromSettings();
+
+  /** True if the signal is decimated before the transform. */
+  private final boolean decimate = Settings.getBoolean(
+      Constants.DECIMATE_SETTING, false);
+
+  /** The number of threads fingerprinting one file. */
+  private final int threads = Settings.getInt(
+      Constants.FINGERPRINT_THREADS_SETTING, 1);
+
+  /** The kernel summing the errors between fingerprints. */
+  private final DistanceKernel kernel = DistanceKernel.forSettings();
+
+  /** True if the offsets are searched with FFT cross-correlation. */
+  private final boolean fftSearch = Constants.SEARCH_FFT
+      .equals(Settings.getString(Constants.SEARCH_SETTING,
+          Constants.SEARCH_SCAN));
+
+  /**
+   * The number of the most distinctive seconds used as anchors, 0
+   * for the first second only.
+   */
+  private final int anchorCount = Settings.getInt(
+      Constants.ANCHORS_SETTING, 0);
+
+  /** True if the slow-path checks are counted. */
+  private final boolean matchStats = Settings.getBoolean(
+      Constants.MATCH_STATS_SETTING, false);
+
+  /** The slow-path checks run, when counted. */
+  private long slowChecks;
+
+  /** The slow-path checks the first second alone would run. */
+  private long firstSecondChecks;
+
+  /** The pool fingerprinting the seconds of a file, null until used. */
+  private ForkJoinPool pool;
+
+  /**
+   * Gets the name of the fingerprint algorithm, its version and the
+   * settings of this run that change fingerprints.
    * 
-   * @param file: the file
-   * @param choice: String represents HEADER or BODY
-   * @return the byte[] of body or header
+   * @return the algorithm name
    */
-  public byte[] getWavBodyHeader(byte[] file, String choice) {
-    // Find the start index of data chunk in the file
-    int datastart = indexOfPattern(file, DATA_CHUNK_BYTE);
-    // If no index found, return empty byte[]
-    if (datastart == -1) {
-      return (new byte[0]);
+  public String getAlgorithm() {
+    if (framePolicy.isPadded()) {
+      return "v" + ALGORITHM_VERSION + "-" + FramePolicy.PADDED;
     }
-    // get the body and header information
-    byte[] body = new byte[file.length - (datastart + 8)];
-    byte[] header = new byte[datastart];
-    if (choice.equalsIgnoreCase(Constants.BODY)) {
-      System.arraycopy(file, datastart + 8, body, 0, file.length
-          - (datastart + 8));
-      return body;
-    } else if (choice.equalsIgnoreCase(Constants.HEADER)) {
-      System.arraycopy(file, 0, header, 0, datastart);
-      return header;
-    } else
-      return (new byte[0]);
+    return "v" + ALGORITHM_VERSION + "-" + FramePolicy.POWER_OF_TWO
+        + (decimate ? "-decimated" : "");
   }
 
   /**
-   * Gets the property from wav header.
+   * This method calculates the finger prints of the left and,
+   * for stereo files, the right channel in a single pass over
+   * the data of a mapped or streamed wav file.
    * 
-   * @param header the header
-   * @param property: the property required
-   * @return the value of the required property
+   * @param wav: the wav file
+   * @return the int[][][], the fingerprint of the left channel
+   *         followed by the one of the right channel if the
+   *         file has more than one channel
    */
-  public int getWavProperty(byte[] header, String property) {
-    int fmtstart = indexOfPattern(header, FMT_CHUNK_BYTE);
-    if (fmtstart == -1) {
-      return -1;
-    }
-    // use ByteBuffer to handle endianness of the bytes
-    ByteBuffer bb;
-    if (property.equalsIgnoreCase(Constants.CHANNELS)) {
-      byte[] channelsBytes =
-          {header[fmtstart + CHANNEL_OFFSET],
-              header[fmtstart + CHANNEL_OFFSET + 1]};
-      bb = ByteBuffer.wrap(channelsBytes);
-      bb.order(ByteOrder.LITTLE_ENDIAN);
-      return bb.getShort();
-    } else if (property.equalsIgnoreCase(Constants.BYTES_PER_SEC)) {
-      // set bytes per second from the header
-      byte[] bytesPerSecBytes =
-          {header[fmtstart + BYTES_PER_SEC_OFFSET],
-              header[fmtstart + BYTES_PER_SEC_OFFSET + 1],
-              header[fmtstart + BYTES_PER_SEC_OFFSET + 2],
-              header[fmtstart + BYTES_PER_SEC_OFFSET + 3]};
-      bb = ByteBuffer.wrap(bytesPerSecBytes);
-      bb.order(ByteOrder.LITTLE_ENDIAN);
-      return bb.getInt();
-    } else if (property.equalsIgnoreCase(Constants.BITS_PER_SAMPLE)) {
-      // set bits per sample from the header
-      byte[] bitsPerSampBytes =
-          {header[fmtstart + BITS_PER_SAMP_OFFSET],
-              header[fmtstart + BITS_PER_SAMP_OFFSET + 1]};
-      bb = ByteBuffer.wrap(bitsPerSampBytes);
-      bb.order(ByteOrder.LITTLE_ENDIAN);
-      return bb.getShort();
-    } else
-      return -1;
+  public int[][][] fingerPrintChannels(WavFile wav) {
+    int channels =
+        (wav.getFormat() == null) ? 1 : wav.getFormat().getChannels();
+    int[] channelIndexes =
+        (channels >= 2) ? new int[] {0, 1} : new int[] {0};
+    return fingerPrint(wav, channelIndexes);
   }
 
   /**
-   * This method calculates the finger print for a give wav
-   * file represented by byte[].
+   * This method calculates the finger print of the mid channel,
+   * (left + right) / 2, of a mapped or streamed wav file. For mono
+   * files it is the finger print of the only channel.
    * 
-   * @param file: the file
-   * @param header: the header info
-   * @param channels the channels
-   * @param isLeft: true if fingerprinting on left channel,
-   *          false if fingerprinting on right channel
-   * @return the int[][], calculated fingerprint of a given
-   *         file
+   * @param wav: the wav file
+   * @return the int[][], calculated fingerprint of the mid
+   *         channel
    */
-  public int[][] fingerPrint(byte[] file, byte[] header,
-      int channels, boolean isLeft) {
-    byte[] body = getWavBodyHeader(file, Constants.BODY);
-    int bytesPerSec = getWavProperty(header, Constants.BYTES_PER_SEC);
-    if (bytesPerSec == -1) return new int[0][0];
-    int bitsPerSamp =
-        getWavProperty(header, Constants.BITS_PER_SAMPLE);
-    if (bitsPerSamp == -1) return new int[0][0];
-    // get the spectrum of the data of the input file
-    Complex[][] spectrum =
-        calculateSpectrum(body, bytesPerSec, bitsPerSamp, channels,
-            isLeft);
-    // get the fingerprint of the calculated spectrum
-    return getFingerPrint(spectrum);
+  public int[][] fingerPrintMid(WavFile wav) {
+    int channels =
+        (wav.getFormat() == null) ? 1 : wav.getFormat().getChannels();
+    int channel = (channels >= 2) ? SampleDecoder.MID_CHANNEL : 0;
+    return fingerPrint(wav, new int[] {channel})[0];
   }
 
   /**
-   * Calculate spectrum for the given data part of the
-   * signal.
+   * Calculates the finger prints of the given channels.
    * 
-   * @param data the data
-   * @param bytesPerSec the bytes per sec
-   * @param bitsPerSamp the bits per samp
-   * @param channels the channels
-   * @param isLeft: true if fingerprinting on left channel,
-   *          false if fingerprinting on right channel
-   * @return the complex[][], the spectrum
+   * @param wav: the wav file
+   * @param channelIndexes the channels to fingerprint
+   * @return the int[][][], a fingerprint per channel
    */
-  private Complex[][] calculateSpectrum(byte[] data, int bytesPerSec,
-      int bitsPerSamp, int channels, boolean isLeft) {
-    // If mono file, isLeft should always be true
-    if (channels == 1 && !isLeft) isLeft = true;
-    // input data only contains the body, not include
-    // header info
-    int signalLength = data.length;
-    int totalSeconds = signalLength / bytesPerSec;
-    Complex[][] spectrum = new Complex[totalSeconds][];
-    // for every second, get the sample chunk into a complex
-    // array
-    Complex[] sampleChunk;
-    for (int second = 0; second < totalSeconds; second++) {
-      int bytesPerSample = bitsPerSamp / 8;
-      // compute the step as channels * bytesPerSample
-      // we'll take one sample in every "step" bytes
-      int step = channels * bytesPerSample;
-      int channelStep = ((isLeft) ? 0 : 1) * bytesPerSample;
-      // initialize the sample chunk array
-      sampleChunk = new Complex[bytesPerSec / step];
-      // create a corresponding complex number for each
-      // sample,
-      // put the real part as the sample (byte to double),
-      // put the imaginary part as 0,
-      for (int i = 0; i < bytesPerSec; i = i + step) {
-        // compute the realPart
-        double realPart;
-        
-        if (bitsPerSamp == 16)
-          realPart =
-              bytesToDouble(data[(second * bytesPerSec) + i
-                  + channelStep], data[(second * bytesPerSec) + i + 1
-                  + channelStep]);
-        else
-          realPart =
-              (double) data[(second * bytesPerSec) + i + channelStep];
-        // each sample has been converted to a complex
-        // number
-        sampleChunk[i / step] = new Complex(realPart, 0);
-      }
-      // Perform FFT analysis on the chunk:
-      spectrum[second] = FFT.fft(FFT.padding(sampleChunk));
-    }
-    return spectrum;
+  private int[][][] fingerPrint(WavFile wav, int[] channelIndexes) {
+    int[][][] empty = new int[channelIndexes.length][0][0];
+    WavFormat format = wav.getFormat();
+    if (format == null) return empty;
+    int bytesPerSec = format.getByteRate();
+    if (bytesPerSec <= 0) return empty;
+    SampleDecoder decoder =
+        SampleDecoder.forFormat(format.getAudioFormat(),
+            format.getBitsPerSample(), format.getChannels());
+    if (decoder == null) return empty;
+    // transform every second straight into its fingerprint row
+    return calculateFingerPrints(wav, bytesPerSec, decoder,
+        channelIndexes);
   }
 
   /**
-   * Gets the finger print using complex signal spectrum.
+   * Calculate the fingerprints for the given data part of the
+   * signal. With several fingerprinting threads, the seconds are
+   * split on a fork-join pool, see {@link SecondsTask}.
    * 
-   * @param spectrum the spectrum
-   * @return the computed finger print
+   * @param wav the wav file
+   * @param bytesPerSec the bytes per sec
+   * @param decoder the decoder of the samples
+   * @param channelIndexes the channels to fingerprint
+   * @return the int[][][], a fingerprint per channel
    */
-  private int[][] getFingerPrint(Complex[][] spectrum) {
-    // Check if spectrum is populated correctly, else return
-    if (spectrum.length == 0) return new int[0][0];
-    if (spectrum[0].length == 0) return new int[0][0];
-    int bytesPerSecond = spectrum[0].length;
-    int totalSeconds = spectrum.length;
-    // array that saves highest magnitude in each freq range
-    // in each second
-    double[][] maxMag = new double[totalSeconds][FREQRANGE.length];
+  private int[][][] calculateFingerPrints(final WavFile wav,
+      final int bytesPerSec, final SampleDecoder decoder,
+      final int[] channelIndexes) {
+    if (wav.isPiped()) {
+      return calculatePipedFingerPrints(wav, bytesPerSec, decoder,
+          channelIndexes);
+    }
+    // input data only contains the body, not include
+    // header info
+    int totalSeconds = (int) (wav.getDataLength() / bytesPerSec);
     // array saves freqs of highest magnitude in each range
     // in each second
-    int[][] maxFreq = new int[totalSeconds][FREQRANGE.length];
-    // For every second
-    for (int second = 0; second < totalSeconds; second++) {
-      // for every freq
-      for (int freq = START_FREQ; freq < bytesPerSecond / 2; freq++) {
-        // Get the magnitude in log:
-        double mag = Math.log(spectrum[second][freq].absolute() + 1);
-        // Find out which range we are in:
-        int index = getRangeIndex(freq);
-        // Save the highest magnitude and corresponding
-        // frequency:
-        if (index < FREQRANGE.length) {
-          if (mag > maxMag[second][index]) {
-            maxMag[second][index] = mag;
-            maxFreq[second][index] = freq;
-          }
-        }
-      }
+    final int[][][] maxFreq =
+        new int[channelIndexes.length][totalSeconds][FREQRANGE.length];
+    if (threads <= 1) {
+      calculateFingerPrints(wav, bytesPerSec, decoder, channelIndexes,
+          0, totalSeconds, maxFreq);
+      return maxFreq;
     }
+    getPool().invoke(
+        new SecondsTask(wav, bytesPerSec, decoder, channelIndexes, 0,
+            totalSeconds, maxFreq));
     return maxFreq;
   }
 
   /**
-   * Find out in which frequency range the input frequency
-   * occurs.
+   * Gets the pool fingerprinting the seconds of a file, created on
+   * first use. Its idle workers end by themselves.
    * 
-   * @param freq the freq
-   * @return int, the range index of the frequency
+   * @return the pool
    */
-  private int getRangeIndex(int freq) {
-    try {
-      int i = 0;
-      while (i < FREQRANGE.length) {
-        if (FREQRANGE[i] < freq)
-          i++;
-        else
-          break;
+  private synchronized ForkJoinPool getPool() {
+    if (pool == null) pool = new ForkJoinPool(threads);
+    return pool;
+  }
+
+  /**
+   * The Class SecondsTask fingerprints a block of seconds, split in
+   * halves down to a few tasks per thread of the pool, so that idle
+   * workers steal seconds from busy ones. Every worker transforms in
+   * its own FFT workspace, the seconds are independent.
+   */
+  private class SecondsTask extends RecursiveAction {
+
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The wav file, mapped, streamed or in memory. */
+    private final WavFile wav;
+
+    /** The bytes per sec. */
+    private final int bytesPerSec;
+
+    /** The decoder of the samples. */
+    private final SampleDecoder decoder;
+
+    /** The channels to fingerprint. */
+    private final int[] channelIndexes;
+
+    /** The first second of the block. */
+    private final int fromSecond;
+
+    /** The second after the block. */
+    private final int toSecond;
+
+    /** The fingerprints, receive the rows of the block. */
+    private final int[][][] maxFreq;
+
+    /**
+     * Instantiates a new task.
+     * 
+     * @param wav the wav file
+     * @param bytesPerSec the bytes per sec
+     * @param decoder the decoder of the samples
+     * @param channelIndexes the channels to fingerprint
+     * @param fromSecond the first second of the block
+     * @param toSecond the second after the block
+     * @param maxFreq the fingerprints, receive the rows of the
+     *          block
+     */
+    private SecondsTask(WavFile wav, int bytesPerSec,
+        SampleDecoder decoder, int[] channelIndexes, int fromSecond,
+        int toSecond, int[][][] maxFreq) {
+      this.wav = wav;
+      this.bytesPerSec = bytesPerSec;
+      this.decoder = decoder;
+      this.channelIndexes = channelIndexes;
+      this.fromSecond = fromSecond;
+      this.toSecond = toSecond;
+      this.maxFreq = maxFreq;
+    }
+
+    /**
+     * Fingerprints the block, or its halves in parallel.
+     */
+    protected void compute() {
+      int seconds = maxFreq[0].length;
+      int grain =
+          Math.max(MIN_TASK_SECONDS, seconds
+              / (threads * TASKS_PER_THREAD));
+      if (toSecond - fromSecond <= grain) {
+        calculateFingerPrints(wav, bytesPerSec, decoder, channelIndexes,
+            fromSecond, toSecond, maxFreq);
+        return;
       }
-      return i;
-    } catch (Exception e) {
-      return FREQRANGE.length + 1;
+      int middle = (fromSecond + toSecond) >>> 1;
+      invokeAll(new SecondsTask(wav, bytesPerSec, decoder,
+          channelIndexes, fromSecond, middle, maxFreq), new SecondsTask(
+          wav, bytesPerSec, decoder, channelIndexes, middle, toSecond,
+          maxFreq));
     }
   }
 
   /**
-   * Method to find Index in the data bytes where the
-   * pattern starts. We use KMP string search algorithm. REF
-   * : http://en.wikipedia.org/wiki/Knuth%E2%80%93Morris%E2%
-   * 80%93Pratt_algorithm
+   * Calculate the fingerprints of a piped file, whose length is
+   * only known at its end. The seconds are read in order by
+   * the current thread, in batches of rows appended to the
+   * fingerprints. With several fingerprinting threads, see
+   * {@link #calculateParallelPipedFingerPrints}.
    * 
-   * @param data the data
-   * @param pattern the pattern
-   * @return the int, the index where pattern starts
+   * @param wav the piped wav file
+   * @param bytesPerSec the bytes per sec
+   * @param decoder the decoder of the samples
+   * @param channelIndexes the channels to fingerprint
+   * @return the int[][][], a fingerprint per channel
    */
-  private int indexOfPattern(byte[] data, byte[] pattern) {
-    // Compute failure function
-    int[] failureFunction = computeFailureFunction(pattern);
-    int patternIndex = 0;
-    if (data.length == 0) return -1;
-    for (int dataIndex = 0; dataIndex < data.length; dataIndex++) {
-      while (patternIndex > 0
-          && pattern[patternIndex] != data[dataIndex]) {
-        patternIndex = failureFunction[patternIndex - 1];
-      }
-      // when there is a match increase the pattern index by
-      // one
-      if (pattern[patternIndex] == data[dataIndex]) {
-        patternIndex++;
-      }
-      // in case pattern completely searched return the
-      // pattern matching index
-      if (patternIndex == pattern.length) {
-        return dataIndex - pattern.length + 1;
+  private int[][][] calculatePipedFingerPrints(WavFile wav,
+      int bytesPerSec, SampleDecoder decoder, int[] channelIndexes) {
+    if (threads > 1) {
+      return calculateParallelPipedFingerPrints(wav, bytesPerSec,
+          decoder, channelIndexes);
+    }
+    int[][][] maxFreq = new int[channelIndexes.length][0][];
+    int totalSeconds = 0;
+    while (true) {
+      // add the rows of the next batch
+      for (int c = 0; c < maxFreq.length; c++) {
+        maxFreq[c] =
+            Arrays.copyOf(maxFreq[c], totalSeconds + PIPED_BATCH_SECONDS);
+        for (int second = totalSeconds; second < maxFreq[c].length;
+            second++) {
+          maxFreq[c][second] = new int[FREQRANGE.length];
+        }
       }
+      int seconds =
+          calculateFingerPrints(wav, bytesPerSec, decoder,
+              channelIndexes, totalSeconds, totalSeconds
+                  + PIPED_BATCH_SECONDS, maxFreq);
+      totalSeconds += seconds;
+      if (seconds < PIPED_BATCH_SECONDS) break;
     }
-    return -1;
+    // drop the rows after the end of the stream
+    for (int c = 0; c < maxFreq.length; c++) {
+      maxFreq[c] = Arrays.copyOf(maxFreq[c], totalSeconds);
+    }
+    return maxFreq;
   }
 
   /**
-   * Computes the failure function using a boot-strapping
-   * process, where the pattern is matched against itself.
+   * Calculate the fingerprints of a piped file on the fork-join
+   * pool. The current thread reads every batch of seconds into
+   * memory, decoding it, while the pool fingerprints the batch
+   * before it.
    * 
-   * @param pattern the pattern
-   * @return the int[] : failureFunction
+   * @param wav the piped wav file
+   * @param bytesPerSec the bytes per sec
+   * @param decoder the decoder of the samples
+   * @param channelIndexes the channels to fingerprint
+   * @return the int[][][], a fingerprint per channel
    */
-  private int[] computeFailureFunction(byte[] pattern) {
-    int[] failureFunction = new int[pattern.length];
-    int currentIndex = 0;
-    for (int nextIndex = 1; nextIndex < pattern.length; nextIndex++) {
-      while (currentIndex > 0
-          && pattern[currentIndex] != pattern[nextIndex]) {
-        currentIndex = failureFunction[currentIndex - 1];
-      }
-      if (pattern[currentIndex] == pattern[nextIndex]) {
-        currentIndex++;
+  private int[][][] calculateParallelPipedFingerPrints(WavFile wav,
+      int bytesPerSec, SampleDecoder decoder, int[] channelIndexes) {
+    List<int[][][]> batches = new ArrayList<int[][][]>();
+    ForkJoinTask<Void> previous = null;
+    int totalSeconds = 0;
+    boolean isEnd = false;
+    while (!isEnd) {
+      WavFile batch = wav.readPiped(PIPED_BATCH_SECONDS * bytesPerSec);
+      int seconds = (int) (batch.getDataLength() / bytesPerSec);
+      isEnd = seconds < PIPED_BATCH_SECONDS;
+      if (previous != null) previous.join();
+      int[][][] rows =
+          new int[channelIndexes.length][seconds][FREQRANGE.length];
+      batches.add(rows);
+      previous =
+          getPool().submit(
+              new SecondsTask(batch, bytesPerSec, decoder,
+                  channelIndexes, 0, seconds, rows));
+      totalSeconds += seconds;
+    }
+    previous.join();
+    // append the rows of every batch
+    int[][][] maxFreq = new int[channelIndexes.length][totalSeconds][];
+    int second = 0;
+    for (int[][][] batch : batches) {
+      for (int c = 0; c < maxFreq.length; c++) {
+        System.arraycopy(batch[c], 0, maxFreq[c], second, batch[c].length);
       }
-      failureFunction[nextIndex] = currentIndex;
+      second += batch[0].length;
     }
-    return failureFunction;
+    return maxFreq;
   }
 
   /**
-   * This is a helper method that converts the given 2
-   * bytes(in little-endian) to a double.
+   * Calculate the fingerprint rows of a block of seconds.
+   * Only the bytes of one frame are read at a time, so a
+   * streamed file needs memory for one frame whatever its
+   * length. Every second is decoded for all channels in one
+   * pass, transformed in the FFT workspace of the current
+   * thread and its spectrum is reduced at once to the peak of
+   * every frequency range, so the spectrum of the whole file
+   * is never held in memory.
    * 
-   * @param byte1 the byte1
-   * @param byte2 the byte2
-   * @return the converted output
+   * @param wav the wav file
+   * @param bytesPerSec the bytes per sec
+   * @param decoder the decoder of the samples
+   * @param channelIndexes the channels to fingerprint
+   * @param fromSecond the first second of the block
+   * @param toSecond the second after the block
+   * @param maxFreq the fingerprints, receive the rows of the
+   *          block
+   * @return the number of seconds calculated, fewer than the
+   *         block only if a piped file ends before it
    */
-  private double bytesToDouble(byte byte1, byte byte2) {
-    byte[] bytes = {byte1, byte2};
-    ByteBuffer bb = ByteBuffer.wrap(bytes);
-    bb.order(ByteOrder.LITTLE_ENDIAN);
-    return bb.getShort();
+  private int calculateFingerPrints(WavFile wav, int bytesPerSec,
+      SampleDecoder decoder, int[] channelIndexes, int fromSecond,
+      int toSecond, int[][][] maxFreq) {
+    // we'll take one sample in every "step" bytes
+    int step = decoder.getBlockAlign();
+    int samplesPerSec = bytesPerSec / step;
+    // the decimator, if any, lowers the rate before the
+    // transform
+    Decimator decimator = null;
+    if (decimate && !framePolicy.isPadded()) {
+      decimator =
+          Decimator.forRate(samplesPerSec,
+              FREQRANGE[FREQRANGE.length - 1]);
+    }
+    int frameRate =
+        (decimator == null) ? samplesPerSec : decimator
+            .getOutputRate();
+    // only the samples of the frame are transformed, the hop
+    // between frames is one second
+    int frameSamples = framePolicy.frameSamples(frameRate);
+    int inputSamples =
+        (decimator == null) ? frameSamples : Math.min(samplesPerSec,
+            frameSamples * decimator.getFactor());
+    // one workspace is reused for every second, each thread
+    // has its own
+    FFTWorkspace workspace =
+        FFTWorkspace.forThread(framePolicy.frameSize(frameRate));
+    BandPeakKernel kernel =
+        BandPeakKernel.forBins(FREQRANGE, START_FREQ,
+            workspace.size() / 2, framePolicy.hzPerBin(frameRate));
+    double[][] sampleChunks =
+        new double[channelIndexes.length][inputSamples];
+    double[] frame = new double[inputSamples];
+    double[] maxPower = new double[FREQRANGE.length];
+    // a piped file reads whole seconds, so that the second
+    // after its end is never fingerprinted
+    int blockLength = wav.isPiped() ? bytesPerSec : inputSamples * step;
+    ByteBuffer block = null;
+    for (int second = fromSecond; second < toSecond; second++) {
+      // read the bytes of the frame and decode its samples for
+      // every channel
+      block =
+          wav.readBlock((long) second * bytesPerSec, blockLength,
+              block);
+      if (block == null) return second - fromSecond;
+      decoder.decode(block, 0, channelIndexes, sampleChunks,
+          inputSamples);
+      for (int c = 0; c < channelIndexes.length; c++) {
+        double[] signal = sampleChunks[c];
+        if (decimator != null) {
+          decimator.decimate(signal, inputSamples, frame);
+          signal = frame;
+        }
+        // Perform real-input FFT analysis on the padded chunk:
+        workspace.transformReal(signal, frameSamples);
+        // Save the frequency of the highest magnitude in every
+        // range
+        kernel.pickPeaks(workspace.getReal(),
+            workspace.getImaginary(), maxPower, maxFreq[c][second]);
+      }
+    }
+    return toSecond - fromSecond;
   }
 
   /**
-   * Method to match two given finger prints.
+   * Method to match two given finger prints without printing,
+   * flattening both first. Callers matching a fingerprint in several
+   * pairs should flatten it once into a {@link FingerPrint}.
    * 
    * @param fingerPrintOne : FFT values of file one
    * @param fingerPrintTwo : FFT values of file two
    * @param file1Name the file1 name
    * @param file2Name the file2 name
-   * @return true, if match found, otherwise false
+   * @return the MATCH line to print if match found, otherwise
+   *         null
    */
-  public boolean matchTwoFingerPrints(int[][] fingerPrintOne,
+  public String getMatch(int[][] fingerPrintOne,
       int[][] fingerPrintTwo, String file1Name, String file2Name) {
+    return getMatch(new FingerPrint(fingerPrintOne), new FingerPrint(
+        fingerPrintTwo), file1Name, file2Name);
+  }
+
+  /**
+   * Method to match two given finger prints without printing.
+   * 
+   * @param one : the fingerprint of file one
+   * @param two : the fingerprint of file two
+   * @param file1Name the file1 name
+   * @param file2Name the file2 name
+   * @return the MATCH line to print if match found, otherwise
+   *         null
+   */
+  public String getMatch(FingerPrint one, FingerPrint two,
+      String file1Name, String file2Name) {
+    int[][] fingerPrintOne = one.getRows();
+    int[][] fingerPrintTwo = two.getRows();
     if (fingerPrintOne.length == 0 || fingerPrintTwo.length == 0)
-      return false;
+      return null;
     if (fingerPrintOne[0].length == 0
-        || fingerPrintTwo[0].length == 0) return false;
+        || fingerPrintTwo[0].length == 0) return null;
     // get the filenames for printing, longer file name
     // followed by shorter file name
     String fileNames =
@@ -350,48 +532,49 @@ public class FingerPrintWav {
             + Constants.SPACE + file2Name) : (file2Name
             + Constants.SPACE + file1Name);
     int vectorSize = fingerPrintOne[0].length;
-    // array to hold the longer fingerprint
-    int[][] longer;
-    // array to hold the shorter fingerprint
-    int[][] shorter;
-    if (fingerPrintOne.length >= fingerPrintTwo.length) {
-      shorter = fingerPrintTwo;
-      longer = fingerPrintOne;
-    } else {
-      shorter = fingerPrintOne;
-      longer = fingerPrintTwo;
-    }
-    int[] first_vector_short = shorter[0];
+    // the longer and shorter fingerprints
+    FingerPrint longFingerPrint =
+        (fingerPrintOne.length >= fingerPrintTwo.length) ? one : two;
+    FingerPrint shortFingerPrint = (longFingerPrint == one) ? two : one;
+    int[][] longer = longFingerPrint.getRows();
+    int[][] shorter = shortFingerPrint.getRows();
+    // compare flattened rows, the short file's rows are contiguous
+    int[] flattened_long = longFingerPrint.getFlattened();
+    int[] flattened_short = shortFingerPrint.getFlattened();
     double distance = 0.0;
     double bestMatch = 1.0;
     double time = 0.0;
-    int[] vector_long = new int[vectorSize];
-    int[] subset_long = new int[shorter.length * vectorSize];
-    int[] flattened_short = flattenMatrix(shorter);
-    int count = 0;
-    // FAST ALGO : Check the similarity between first second
-    // fingerprints of short file with every 1 second finger
-    // prints of the long file.
+    // the seconds of the short file checked before the slow path
+    int[] anchors = getAnchors(longer, shorter, flattened_short);
+    if (fftSearch) {
+      int offset =
+          getCorrelatedOffset(longer, shorter, flattened_long,
+              flattened_short, anchors);
+      if (offset < 0) return null;
+      return "MATCH: " + (double) offset + " " + fileNames;
+    }
+    long checks = 0;
+    long firstSecond = 0;
+    // FAST ALGO : Check the similarity between the anchor
+    // fingerprints of short file and the 1 second finger
+    // prints of the long file at the same distance.
     for (int i = 0; i <= longer.length - shorter.length; i++) {
-      vector_long = longer[i];
-      distance =
-          Math.abs(getDistance(vector_long, first_vector_short));
-      // If distance between one second fingerprints is
+      if (matchStats
+          && isAnchored(flattened_long, i, flattened_short,
+              FIRST_SECOND, vectorSize)) firstSecond++;
+      // If distances between one second fingerprints are all
       // smaller than
       // the THRESHHOLD_HIGH: switch to SLOW ALGO to confirm
       // the match
-      if (distance <= THRESHHOLD_HIGH) {
-        count = 0;
-        for (int row = i; row < (i + shorter.length); row++) {
-          for (int col = 0; col < vectorSize; col++) {
-            subset_long[count++] = longer[row][col];
-          }
-        }
+      if (isAnchored(flattened_long, i, flattened_short, anchors,
+          vectorSize)) {
+        checks++;
         // SLOW ALGO : Check if the pattern of shorter
         // fingerprints exists in the subset of longer
         // fingerprint starting at this second.
         distance =
-            Math.abs(getDistance(subset_long, flattened_short));
+            getDistance(flattened_long, i * vectorSize, flattened_short,
+                bestMatch);
         // if distance smaller than THRESHHOLD_LOW, replace
         // the bestMatch
         if (distance <= THRESHHOLD_LOW && distance < bestMatch) {
@@ -400,69 +583,300 @@ public class FingerPrintWav {
         }
       }
     }
+    if (matchStats) countChecks(checks, firstSecond);
     if (bestMatch != 1.0) {
       // Match Found
-      System.out.println("MATCH: " + time + " " + fileNames);
-      return true;
+      return "MATCH: " + time + " " + fileNames;
     }
     // No match found
-    return false;
+    return null;
   }
 
   /**
-   * Method to convert the 2D array of type int[][] into
-   * double[].
-   * 
-   * @param matrix : int[][] representing computed FFT
-   *          values of a audio file (.wav for prototype)
-   * @return : double[] containing all values of matrix
-   *         linearly
+   * Searches the offset of the best match with FFT cross-correlation,
+   * see FingerPrintCorrelator, and gives the offset the scan of
+   * getMatch gives. The distances of all the offsets are computed at
+   * once; the offsets that may be below THRESHHOLD_LOW and pass the
+   * anchor checks are then compared exactly from the closest one,
+   * until the next one cannot beat the best match.
+   *
+   * @param longer the longer fingerprint
+   * @param shorter the shorter fingerprint
+   * @param flattened_long the flattened longer fingerprint
+   * @param flattened_short the flattened shorter fingerprint
+   * @param anchors the anchor seconds of the shorter fingerprint
+   * @return the offset of the best match, -1 if none
    */
-  private int[] flattenMatrix(int[][] matrix) {
-    // create a result array of length N*5
-    int rowSize = matrix.length;
-    // Check if matrix has data else return
-    if (rowSize == 0) return (new int[0]);
-    int colSize = matrix[0].length;
-    if (colSize == 0) return (new int[0]);
-    int[] results = new int[rowSize * colSize];
-    int count = 0;
-    // Loop through the matrix to flatten it
-    for (int row = 0; row < rowSize; row++) {
-      for (int col = 0; col < colSize; col++) {
-        results[count++] = matrix[row][col];
+  private int getCorrelatedOffset(int[][] longer, int[][] shorter,
+      int[] flattened_long, int[] flattened_short, int[] anchors) {
+    int vectorSize = shorter[0].length;
+    double[] errors =
+        FingerPrintCorrelator.getSquaredErrors(longer, shorter, WEIGHTS);
+    double[] distances = new double[errors.length];
+    List<Integer> candidates = new ArrayList<Integer>();
+    // the candidates of the first second alone, when counted
+    List<Integer> firstSecondCandidates = new ArrayList<Integer>();
+    for (int i = 0; i < errors.length; i++) {
+      distances[i] =
+          Math.sqrt(Math.max(0.0, errors[i]) / flattened_short.length);
+      if (distances[i] > THRESHHOLD_LOW + FFT_TOLERANCE) continue;
+      if (matchStats
+          && isAnchored(flattened_long, i, flattened_short,
+              FIRST_SECOND, vectorSize)) firstSecondCandidates.add(i);
+      if (isAnchored(flattened_long, i, flattened_short, anchors,
+          vectorSize)) {
+        candidates.add(i);
       }
     }
-    // return the flattened array
-    return results;
+    long[] checks = new long[1];
+    int time =
+        getClosestOffset(candidates, distances, flattened_long,
+            flattened_short, vectorSize, checks);
+    if (matchStats) {
+      long[] firstSecond = checks;
+      if (anchors != FIRST_SECOND) {
+        // compare the candidates of the first second the same way,
+        // only to count the comparisons
+        firstSecond = new long[1];
+        getClosestOffset(firstSecondCandidates, distances,
+            flattened_long, flattened_short, vectorSize, firstSecond);
+      }
+      countChecks(checks[0], firstSecond[0]);
+    }
+    return time;
   }
 
   /**
-   * Gets the distance.
-   * 
-   * @param fingerPrintOne: the finger print of one file
-   * @param fingerPrintTwo the finger print of two file
+   * Compares candidate offsets exactly from the closest one, until
+   * the next one cannot beat the best match.
+   *
+   * @param candidates the candidate offsets, sorted here
+   * @param distances the distance of every offset, from the
+   *          cross-correlation
+   * @param flattened_long the flattened longer fingerprint
+   * @param flattened_short the flattened shorter fingerprint
+   * @param vectorSize the values of a row
+   * @param checks counts the offsets compared exactly, in checks[0]
+   * @return the offset of the best match, -1 if none
+   */
+  private int getClosestOffset(List<Integer> candidates,
+      final double[] distances, int[] flattened_long,
+      int[] flattened_short, int vectorSize, long[] checks) {
+    // closest first, the earliest of equal distances first
+    Collections.sort(candidates, new Comparator<Integer>() {
+      public int compare(Integer one, Integer two) {
+        int order = Double.compare(distances[one], distances[two]);
+        return (order != 0) ? order : one.compareTo(two);
+      }
+    });
+    double bestMatch = 1.0;
+    int time = -1;
+    for (int i : candidates) {
+      if (distances[i] > bestMatch + FFT_TOLERANCE) break;
+      checks[0]++;
+      // an earlier offset also wins at the same distance, as it does
+      // in the scan
+      double distance =
+          getDistance(flattened_long, i * vectorSize, flattened_short,
+              (i < time) ? Math.nextUp(bestMatch) : bestMatch);
+      if (distance <= THRESHHOLD_LOW
+          && (distance < bestMatch || (distance == bestMatch
+              && i < time))) {
+        bestMatch = distance;
+        time = i;
+      }
+    }
+    return time;
+  }
+
+  /**
+   * Gets the anchors of a pair: the rows of the shorter fingerprint
+   * that must all be within THRESHHOLD_HIGH of the rows of the longer
+   * one at the same distance before an offset is compared whole.
+   * Without anchorCount, the first second only. Otherwise the
+   * anchorCount seconds the most unlike the longer fingerprint: the
+   * weighted values of every column of the longer fingerprint are
+   * counted in bins, and a second scores the sum over its columns of
+   * log(rows / rows in its bin), so that silence, fade-ins and the
+   * seconds repeated all along the longer file come last. A cut
+   * rarely falls on a whole second, so the seconds within
+   * THRESHHOLD_LOW of the seconds around them come before the
+   * others, which may not match even where the files do. The rarest
+   * anchor comes first, it rejects most offsets.
+   *
+   * @param longer the longer fingerprint
+   * @param shorter the shorter fingerprint
+   * @param flattened the flattened shorter fingerprint
+   * @return the rows of the anchors
+   */
+  private int[] getAnchors(int[][] longer, int[][] shorter,
+      int[] flattened) {
+    if (anchorCount <= 0) return FIRST_SECOND;
+    int columns = shorter[0].length;
+    int[][] bins = new int[columns][RARITY_BINS];
+    for (int[] row : longer) {
+      for (int c = 0; c < columns; c++) {
+        bins[c][getRarityBin(row[c], c)]++;
+      }
+    }
+    final double[] rarity = new double[shorter.length];
+    final boolean[] stable = new boolean[shorter.length];
+    List<Integer> rows = new ArrayList<Integer>();
+    for (int row = 0; row < shorter.length; row++) {
+      for (int c = 0; c < columns; c++) {
+        rarity[row] +=
+            Math.log((longer.length + 1.0)
+                / (bins[c][getRarityBin(shorter[row][c], c)] + 1));
+      }
+      stable[row] = true;
+      for (int next = row - 1; next <= row + 1; next += 2) {
+        if (next >= 0 && next < shorter.length
+            && getSecondDistance(flattened, next, flattened, row,
+                columns) > THRESHHOLD_LOW) stable[row] = false;
+      }
+      rows.add(row);
+    }
+    // stable then rarest first, the earliest of equal rarities first
+    Collections.sort(rows, new Comparator<Integer>() {
+      public int compare(Integer one, Integer two) {
+        if (stable[one] != stable[two]) return stable[one] ? -1 : 1;
+        int order = Double.compare(rarity[two], rarity[one]);
+        return (order != 0) ? order : one.compareTo(two);
+      }
+    });
+    int[] anchors = new int[Math.min(anchorCount, rows.size())];
+    for (int i = 0; i < anchors.length; i++) {
+      anchors[i] = rows.get(i);
+    }
+    return anchors;
+  }
+
+  /**
+   * Gets the rarity bin of a fingerprint value.
+   *
+   * @param value the value
+   * @param column the column of the value
+   * @return the bin
+   */
+  private int getRarityBin(int value, int column) {
+    return (int) Math.min(RARITY_BINS - 1, Math.abs(value)
+        * WEIGHTS[column] / RARITY_BIN);
+  }
+
+  /**
+   * Checks the anchors of the shorter fingerprint at an offset: the
+   * distance between every anchor second and the second of the
+   * longer fingerprint as far from the offset must not be above
+   * THRESHHOLD_HIGH.
+   *
+   * @param longer the flattened longer fingerprint
+   * @param offset the row of longer the shorter one starts at
+   * @param shorter the flattened shorter fingerprint
+   * @param anchors the rows of the anchors
+   * @param vectorSize the values of a row
+   * @return true, if all the anchors pass
+   */
+  private boolean isAnchored(int[] longer, int offset, int[] shorter,
+      int[] anchors, int vectorSize) {
+    for (int anchor : anchors) {
+      if (getSecondDistance(longer, offset + anchor, shorter, anchor,
+          vectorSize) > THRESHHOLD_HIGH) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Gets the distance between two seconds of flattened fingerprints.
+   *
+   * @param longer the flattened longer fingerprint
+   * @param longerRow the second of longer
+   * @param shorter the flattened shorter fingerprint
+   * @param shorterRow the second of shorter
+   * @param vectorSize the values of a row
    * @return the distance
    */
-  private double getDistance(int[] fingerPrintOne,
-      int[] fingerPrintTwo) {
-    double d = 0.0;
-    double error = 0.0;
+  private double getSecondDistance(int[] longer, int longerRow,
+      int[] shorter, int shorterRow, int vectorSize) {
+    return Math.sqrt(kernel.getSquaredError(longer, longerRow
+        * vectorSize, shorter, shorterRow * vectorSize, WEIGHTS,
+        vectorSize, 0.0)
+        / vectorSize);
+  }
+
+  /**
+   * Counts the slow-path checks of a pair.
+   *
+   * @param checks the checks run
+   * @param firstSecond the checks the first second alone would run
+   */
+  private synchronized void countChecks(long checks, long firstSecond) {
+    slowChecks += checks;
+    firstSecondChecks += firstSecond;
+  }
+
+  /**
+   * Gets the slow-path checks run, counted with arc5500.matchStats.
+   *
+   * @return the slow-path checks
+   */
+  public synchronized long getSlowChecks() {
+    return slowChecks;
+  }
+
+  /**
+   * Gets the slow-path checks the first second alone would have run,
+   * counted with arc5500.matchStats.
+   *
+   * @return the slow-path checks of the first second
+   */
+  public synchronized long getFirstSecondChecks() {
+    return firstSecondChecks;
+  }
+
+  /**
+   * Gets the distance between the shorter fingerprint and the values
+   * of the longer one from an offset, read in place. The sum of the
+   * errors only grows, so the blocks of rows stop as soon as the
+   * distance so far is above THRESHHOLD_LOW or not below the best
+   * match: a false candidate costs a block, not the whole shorter
+   * fingerprint.
+   * 
+   * @param longer the flattened longer fingerprint
+   * @param offset the first value of longer compared
+   * @param shorter the flattened shorter fingerprint
+   * @param bestMatch the distance of the best match so far
+   * @return the distance, or a distance that cannot match if the
+   *         blocks were stopped early
+   */
+  private double getDistance(int[] longer, int offset, int[] shorter,
+      double bestMatch) {
     double sum = 0.0;
-    int freqLength = FREQRANGE.length;
-    int column = 0;
-    double delta = 0.0;
-    for (int i = 0; i < fingerPrintOne.length; i++) {
-      delta =
-          Math.abs(fingerPrintOne[i]) - Math.abs(fingerPrintTwo[i]);
-      column = i % freqLength;
-      error =
-          (column == 0)
-              ? (delta / FREQRANGE[0])
-              : (delta / (FREQRANGE[column] - FREQRANGE[column - 1]));
-      sum += Math.pow(error, 2);
+    double distance = 0.0;
+    for (int from = 0; from < shorter.length; from += WEIGHTS.length) {
+      sum =
+          kernel.getSquaredError(longer, offset + from, shorter, from,
+              WEIGHTS, Math.min(WEIGHTS.length, shorter.length - from),
+              sum);
+      distance = Math.sqrt(sum / shorter.length);
+      if (distance > THRESHHOLD_LOW || distance >= bestMatch) break;
+    }
+    return distance;
+  }
+
+  /**
+   * Gets the inverse width of every frequency range, the first one
+   * starts at 0 Hz, for BLOCK_ROWS rows.
+   * 
+   * @return the weights
+   */
+  private static double[] getWeights() {
+    double[] weights = new double[BLOCK_ROWS * FREQRANGE.length];
+    for (int i = 0; i < weights.length; i++) {
+      int column = i % FREQRANGE.length;
+      int width =
+          FREQRANGE[column] - ((column == 0) ? 0 : FREQRANGE[column - 1]);
+      weights[i] = 1.0 / width;
     }
-    d = Math.sqrt(sum / fingerPrintTwo.length);
-    return d;
+    return weights;
   }
 }
@@ -0,0 +1,92 @@
+/**
+ * The Class FramePolicy decides which samples of every second are
+ * transformed and how the bins of the transform map to frequencies.
+ * Rows of the fingerprint are always one second apart, so the offsets
+ * reported by the matcher stay in seconds whatever the policy is.
+ */
+public class FramePolicy {
+
+  /** The name of the policy transforming one power-of-2 frame. */
+  public static final String POWER_OF_TWO = "pow2";
+
+  /** The name of the policy padding the whole second. */
+  public static final String PADDED = "padded";
+
+  /** True if the whole second is padded up to a power of 2. */
+  private final boolean padded;
+
+  /**
+   * Instantiates a new frame policy.
+   * 
+   * @param padded true if the whole second is padded up to a power
+   *          of 2
+   */
+  private FramePolicy(boolean padded) {
+    this.padded = padded;
+  }
+
+  /**
+   * Gets the policy selected for this run by the arc5500.frame
+   * setting, {@link #PADDED} by default. The power-of-2 policy is
+   * opt-in: the match thresholds are tuned for the bin-index
+   * fingerprints of the padded one.
+   * 
+   * @return the frame policy
+   */
+  public static FramePolicy fromSettings() {
+    String name =
+        Settings.getString(Constants.FRAME_POLICY_SETTING, PADDED);
+    return new FramePolicy(!name.equalsIgnoreCase(POWER_OF_TWO));
+  }
+
+  /**
+   * Checks if this is the padded policy, which keeps the original
+   * bin-index fingerprints.
+   * 
+   * @return true, if padded
+   */
+  public boolean isPadded() {
+    return padded;
+  }
+
+  /**
+   * Gets the transform size used for a second of audio. With the
+   * power-of-2 policy this is the largest power of 2 that fits in one
+   * second (32768 for 44.1 and 48 kHz), so no zeros are transformed.
+   * The padded policy pads the second up to the next power of 2
+   * (65536 for 44.1 and 48 kHz).
+   * 
+   * @param samplesPerSec the samples per second of one channel
+   * @return the transform size
+   */
+  public int frameSize(int samplesPerSec) {
+    int paddedLength = FFT.paddedLength(samplesPerSec);
+    if (padded || paddedLength == samplesPerSec) return paddedLength;
+    return paddedLength / 2;
+  }
+
+  /**
+   * Gets the number of samples of every second that are transformed,
+   * starting at the beginning of the second. The hop between frames
+   * is always one second.
+   * 
+   * @param samplesPerSec the samples per second of one channel
+   * @return the number of samples transformed
+   */
+  public int frameSamples(int samplesPerSec) {
+    return Math.min(samplesPerSec, frameSize(samplesPerSec));
+  }
+
+  /**
+   * Gets the frequency in Hz of one bin of the transform. The padded
+   * policy keeps the original fingerprint unit, where the bin index
+   * itself is used as the frequency.
+   * 
+   * @param samplesPerSec the samples per second of one channel
+   * @return the Hz per bin
+   */
+  public double hzPerBin(int samplesPerSec) {
+    if (padded) return 1.0;
+    return (double) samplesPerSec / frameSize(samplesPerSec);
+  }
+}
@@ -0,0 +1,62 @@
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * The Class LameDecoder decodes mp3 files with lame through pipes,
+ * nothing is written to disk.
+ */
+public class LameDecoder implements AudioDecoder {
+
+  /**
+   * Starts lame on a file, closing the stream destroys the process.
+   * The end of the stream is only reported once lame has exited
+   * normally, a failed decode is an IOException instead.
+   *
+   * @param file the mp3 file, whatever its extension
+   * @return the wav output of lame
+   * @throws IOException if lame cannot be started
+   */
+  public InputStream decode(File file) throws IOException {
+    final Process process = FileUtils.startPipeDecode(file);
+    return new FilterInputStream(process.getInputStream()) {
+      public int read() throws IOException {
+        int read = super.read();
+        if (read < 0) checkExit(process);
+        return read;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read < 0) checkExit(process);
+        return read;
+      }
+
+      public void close() throws IOException {
+        process.destroy();
+        super.close();
+      }
+    };
+  }
+
+  /**
+   * Waits for lame to exit once its output has ended.
+   *
+   * @param process the lame process
+   * @throws IOException if lame failed
+   */
+  private static void checkExit(Process process) throws IOException {
+    int exitValue;
+    try {
+      exitValue = process.waitFor();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    if (exitValue != 0) {
+      throw new IOException("lame exited with " + exitValue);
+    }
+  }
+}
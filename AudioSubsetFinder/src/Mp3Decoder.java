@@ -0,0 +1,349 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * The Class Mp3Decoder decodes MPEG-1 and MPEG-2 Layer III files in
+ * the JVM, with {@link Mp3FrameDecoder}. The file is memory-mapped and
+ * its frames are decoded as the wav stream is read, straight into the
+ * buffer of the reader, so no process is started and nothing is
+ * written to disk. Like lame --decode, the Xing frame of variable
+ * bitrate files is skipped and the encoder delay and padding recorded
+ * in its LAME header are trimmed.
+ *
+ * Files without a Layer III frame near their start, e.g. Layer II or
+ * free format streams, are refused so that another decoder can try.
+ */
+public class Mp3Decoder implements AudioDecoder {
+
+  /** The Constant ID3_ID, "ID3" at the start of an ID3v2 tag. */
+  private final static int ID3_ID = 0x494433;
+
+  /** The Constant ID3_HEADER_LENGTH, also the length of a footer. */
+  private final static int ID3_HEADER_LENGTH = 10;
+
+  /** The Constant ID3_FOOTER_FLAG. */
+  private final static int ID3_FOOTER_FLAG = 0x10;
+
+  /** The Constant SEARCH_LENGTH, the bytes searched for a frame. */
+  private final static int SEARCH_LENGTH = 1 << 16;
+
+  /**
+   * The Constant HEADER_MASK of the header bits every frame of a
+   * stream shares: sync, version, layer and sample rate.
+   */
+  private final static int HEADER_MASK = 0xfffe0c00;
+
+  /** The Constant XING_ID, "Xing". */
+  private final static int XING_ID = 0x58696e67;
+
+  /** The Constant INFO_ID, "Info" in constant bitrate files. */
+  private final static int INFO_ID = 0x496e666f;
+
+  /** The Constant LAME_ID, "LAME". */
+  private final static int LAME_ID = 0x4c414d45;
+
+  /** The Constant XING_FRAMES flag. */
+  private final static int XING_FRAMES = 1;
+
+  /** The Constant XING_BYTES flag. */
+  private final static int XING_BYTES = 2;
+
+  /** The Constant XING_TOC flag. */
+  private final static int XING_TOC = 4;
+
+  /** The Constant XING_QUALITY flag. */
+  private final static int XING_QUALITY = 8;
+
+  /** The Constant XING_TOC_LENGTH. */
+  private final static int XING_TOC_LENGTH = 100;
+
+  /** The Constant LAME_DELAYS_OFFSET in the LAME header. */
+  private final static int LAME_DELAYS_OFFSET = 21;
+
+  /** The Constant DECODER_DELAY of the synthesis filterbank. */
+  private final static int DECODER_DELAY = 529;
+
+  /** The Constant WAV_HEADER_LENGTH. */
+  private final static int WAV_HEADER_LENGTH = 44;
+
+  /** The Constant UNKNOWN_LENGTH of the wav chunks. */
+  private final static int UNKNOWN_LENGTH = 0xffffffff;
+
+  /**
+   * Starts decoding an mp3 file.
+   *
+   * @param file the mp3 file, whatever its extension
+   * @return the wav stream, 16 bit samples
+   * @throws IOException if the file cannot be read or has no Layer
+   *           III frame near its start
+   */
+  public InputStream decode(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    ByteBuffer mp3;
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      // the mapping stays valid after the channel is closed
+      mp3 =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0,
+              Math.min(channel.size(), Integer.MAX_VALUE));
+    } finally {
+      randomAccessFile.close();
+    }
+    int start = skipId3(mp3);
+    int first =
+        findFrame(mp3, start, Math.min(mp3.limit(), start + SEARCH_LENGTH),
+            0);
+    if (first < 0) {
+      throw new IOException(file + " has no MPEG Layer III frame");
+    }
+    return new WavStream(mp3, first);
+  }
+
+  /**
+   * Skips the ID3v2 tag at the start of a file.
+   *
+   * @param mp3 the file
+   * @return the offset after the tag, 0 without tag
+   */
+  private static int skipId3(ByteBuffer mp3) {
+    if (mp3.limit() < ID3_HEADER_LENGTH
+        || (mp3.getInt(0) >>> 8) != ID3_ID) {
+      return 0;
+    }
+    // the size is stored in 4 bytes of 7 bits
+    int size = 0;
+    for (int i = 6; i < ID3_HEADER_LENGTH; i++) {
+      size = (size << 7) | (mp3.get(i) & 0x7f);
+    }
+    if ((mp3.get(5) & ID3_FOOTER_FLAG) != 0) size += ID3_HEADER_LENGTH;
+    return (int) Math.min(mp3.limit(), (long) ID3_HEADER_LENGTH + size);
+  }
+
+  /**
+   * Finds the next frame. A header is only taken for a frame if the
+   * header of the next frame follows it, or the file ends.
+   *
+   * @param mp3 the file
+   * @param from the first offset searched
+   * @param to the end of the search
+   * @param expected the masked header of the stream, 0 for any
+   * @return the offset of the frame, -1 if none
+   */
+  private static int findFrame(ByteBuffer mp3, int from, int to,
+      int expected) {
+    for (int position = from; position + 4 <= to; position++) {
+      if (!isFrame(mp3, position, expected)) continue;
+      int header = mp3.getInt(position);
+      int next = position + Mp3FrameDecoder.getFrameLength(header);
+      if (next + 4 > mp3.limit()
+          || isFrame(mp3, next, header & HEADER_MASK)) {
+        return position;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Checks for a supported frame header.
+   *
+   * @param mp3 the file
+   * @param position the offset of the header
+   * @param expected the masked header of the stream, 0 for any
+   * @return true, if a frame of the stream starts there
+   */
+  private static boolean isFrame(ByteBuffer mp3, int position,
+      int expected) {
+    if (position + 4 > mp3.limit()) return false;
+    int header = mp3.getInt(position);
+    return Mp3FrameDecoder.isSupported(header)
+        && (expected == 0 || (header & HEADER_MASK) == expected);
+  }
+
+  /**
+   * The Class WavStream is the wav output of the decoder: a header
+   * then the samples of one frame at a time.
+   */
+  private static class WavStream extends InputStream {
+
+    /** The mp3 file, null once closed. */
+    private ByteBuffer mp3;
+
+    /** The offset of the next frame. */
+    private int position;
+
+    /** The masked header of the stream. */
+    private final int expected;
+
+    /** The channels of the stream. */
+    private final int channels;
+
+    /** The frame decoder. */
+    private final Mp3FrameDecoder decoder = new Mp3FrameDecoder();
+
+    /** The samples of a frame by channel. */
+    private final double[][] pcm = new double[2][1152];
+
+    /** The bytes of the header, then of the last frame. */
+    private final byte[] bytes = new byte[1152 * 2 * 2];
+
+    /** The offset of the next byte to read. */
+    private int offset;
+
+    /** The bytes available. */
+    private int length;
+
+    /** The samples still to skip, the delay of the encoder. */
+    private long skip;
+
+    /** The samples still to write, -1 if unknown. */
+    private long remaining = -1;
+
+    /**
+     * Instantiates a new wav stream.
+     *
+     * @param mp3 the mp3 file
+     * @param first the offset of the first frame
+     */
+    private WavStream(ByteBuffer mp3, int first) {
+      int header = mp3.getInt(first);
+      this.mp3 = mp3;
+      this.position = first;
+      this.expected = header & HEADER_MASK;
+      this.channels = Mp3FrameDecoder.getChannels(header);
+      readXingFrame(header);
+      ByteBuffer wav = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+      wav.put(new byte[] {'R', 'I', 'F', 'F'}).putInt(UNKNOWN_LENGTH);
+      wav.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+      wav.putInt(16).putShort((short) SampleDecoder.FORMAT_PCM);
+      int sampleRate = Mp3FrameDecoder.getSampleRate(header);
+      wav.putShort((short) channels).putInt(sampleRate);
+      wav.putInt(sampleRate * channels * 2).putShort((short) (channels * 2));
+      wav.putShort((short) 16);
+      wav.put(new byte[] {'d', 'a', 't', 'a'}).putInt(UNKNOWN_LENGTH);
+      length = WAV_HEADER_LENGTH;
+    }
+
+    /**
+     * Skips the Xing frame of a variable bitrate file, which holds no
+     * audio, and reads the delay and padding of the encoder from its
+     * LAME header.
+     *
+     * @param header the header of the first frame
+     */
+    private void readXingFrame(int header) {
+      int tag = position + Mp3FrameDecoder.getMainDataOffset(header);
+      if (tag + 8 > mp3.limit()
+          || (mp3.getInt(tag) != XING_ID && mp3.getInt(tag) != INFO_ID)) {
+        return;
+      }
+      position += Mp3FrameDecoder.getFrameLength(header);
+      int flags = mp3.getInt(tag + 4);
+      int field = tag + 8;
+      long frames = -1;
+      if ((flags & XING_FRAMES) != 0) {
+        frames = mp3.getInt(field) & 0xffffffffL;
+        field += 4;
+      }
+      if ((flags & XING_BYTES) != 0) field += 4;
+      if ((flags & XING_TOC) != 0) field += XING_TOC_LENGTH;
+      if ((flags & XING_QUALITY) != 0) field += 4;
+      int delays = field + LAME_DELAYS_OFFSET;
+      if (delays + 3 > mp3.limit() || mp3.getInt(field) != LAME_ID) {
+        return;
+      }
+      // 12 bits of delay then 12 bits of padding
+      int value =
+          (mp3.get(delays) & 0xff) << 16 | (mp3.get(delays + 1) & 0xff) << 8
+              | (mp3.get(delays + 2) & 0xff);
+      int delay = value >>> 12;
+      int padding = value & 0xfff;
+      skip = delay + DECODER_DELAY;
+      if (frames >= 0) {
+        remaining =
+            Math.max(0, frames * Mp3FrameDecoder.getSamplesPerFrame(header)
+                - delay - padding);
+      }
+    }
+
+    /**
+     * Reads a byte.
+     *
+     * @return the byte, -1 at the end of the stream
+     */
+    public int read() {
+      byte[] one = new byte[1];
+      return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+    }
+
+    /**
+     * Reads bytes, decoding the next frames when the bytes of the last
+     * one are all read.
+     *
+     * @param buffer the buffer
+     * @param off the offset in the buffer
+     * @param len the most bytes read
+     * @return the bytes read, -1 at the end of the stream
+     */
+    public int read(byte[] buffer, int off, int len) {
+      if (len == 0) return 0;
+      while (offset == length) {
+        if (!decodeFrame()) return -1;
+      }
+      int count = Math.min(len, length - offset);
+      System.arraycopy(bytes, offset, buffer, off, count);
+      offset += count;
+      return count;
+    }
+
+    /**
+     * Decodes the next frame to 16 bit samples, searching the next
+     * header after damaged bytes.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean decodeFrame() {
+      if (mp3 == null || remaining == 0) return false;
+      if (!isFrame(mp3, position, expected)) {
+        position = findFrame(mp3, position + 1, mp3.limit(), expected);
+        if (position < 0) return false;
+      }
+      int header = mp3.getInt(position);
+      int samples = decoder.decodeFrame(mp3, position, header, pcm);
+      position += Mp3FrameDecoder.getFrameLength(header);
+      if (channels == 2 && Mp3FrameDecoder.getChannels(header) == 1) {
+        System.arraycopy(pcm[0], 0, pcm[1], 0, samples);
+      }
+      int first = (int) Math.min(skip, samples);
+      skip -= first;
+      int count = samples - first;
+      if (remaining >= 0) {
+        count = (int) Math.min(count, remaining);
+        remaining -= count;
+      }
+      int k = 0;
+      for (int i = first; i < first + count; i++) {
+        for (int ch = 0; ch < channels; ch++) {
+          long sample = Math.round(pcm[ch][i] * 32768);
+          sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+          bytes[k++] = (byte) sample;
+          bytes[k++] = (byte) (sample >> 8);
+        }
+      }
+      offset = 0;
+      length = k;
+      return true;
+    }
+
+    /**
+     * Stops decoding, the mapping is released with the buffer.
+     */
+    public void close() {
+      mp3 = null;
+    }
+  }
+}
@@ -0,0 +1,1218 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The Class Mp3FrameDecoder decodes MPEG-1 and MPEG-2 (and 2.5) Layer
+ * III frames to samples, following the decoding process of the
+ * standard: side information, main data read through the bit
+ * reservoir, scalefactors, Huffman decoding, requantization, joint
+ * stereo, reordering of short blocks, alias reduction, inverse MDCT
+ * with overlap-add and the polyphase synthesis filterbank.
+ *
+ * Frames must be decoded in order with one decoder per stream, the
+ * main data of a frame may start in the frames before it and both
+ * filterbanks carry state from one frame to the next.
+ */
+final class Mp3FrameDecoder {
+
+  /** The Constant MPEG_1 version id. */
+  private final static int MPEG_1 = 3;
+
+  /** The Constant MPEG_2 version id. */
+  private final static int MPEG_2 = 2;
+
+  /** The Constant RESERVED_VERSION id. */
+  private final static int RESERVED_VERSION = 1;
+
+  /** The Constant LAYER_3 id. */
+  private final static int LAYER_3 = 1;
+
+  /** The Constant JOINT_STEREO mode. */
+  private final static int JOINT_STEREO = 1;
+
+  /** The Constant MONO mode. */
+  private final static int MONO = 3;
+
+  /** The Constant SHORT_BLOCK type. */
+  private final static int SHORT_BLOCK = 2;
+
+  /** The Constant LINES of a granule. */
+  private final static int LINES = 576;
+
+  /** The Constant SUBBANDS of the filterbank. */
+  private final static int SUBBANDS = 32;
+
+  /** The Constant SLOTS, the samples of a subband in a granule. */
+  private final static int SLOTS = 18;
+
+  /** The Constant MAX_MAIN_DATA_BEGIN, the size of the reservoir. */
+  private final static int MAX_MAIN_DATA_BEGIN = 511;
+
+  /** The Constant MAX_FRAME_LENGTH, 320 kbit/s at 32 kHz. */
+  private final static int MAX_FRAME_LENGTH = 1441;
+
+  /** The Constant SCFSI_BANDS, the bands sharing a scfsi bit. */
+  private final static int[] SCFSI_BANDS = {0, 6, 11, 16, 21};
+
+  /** The Constant HUFFMAN_TREES by table, null for table 0. */
+  private final static int[][] HUFFMAN_TREES = new int[32][];
+
+  /** The Constant QUAD_TREES of count1 tables A and B. */
+  private final static int[][] QUAD_TREES = new int[2][];
+
+  /** The Constant POW_43, x^(4/3) of every quantized value. */
+  private final static double[] POW_43 = new double[8207];
+
+  /** The Constant LONG_COSINES of the 36 point inverse MDCT. */
+  private final static double[] LONG_COSINES = new double[36 * 18];
+
+  /** The Constant SHORT_COSINES of the 12 point inverse MDCT. */
+  private final static double[] SHORT_COSINES = new double[12 * 6];
+
+  /** The Constant WINDOWS of long, start, short and stop blocks. */
+  private final static double[][] WINDOWS = new double[4][36];
+
+  /** The Constant ALIAS_CS of the alias reduction butterflies. */
+  private final static double[] ALIAS_CS = new double[8];
+
+  /** The Constant ALIAS_CA of the alias reduction butterflies. */
+  private final static double[] ALIAS_CA = new double[8];
+
+  /** The Constant INTENSITY_LEFT, MPEG-1 left factor by position. */
+  private final static double[] INTENSITY_LEFT = new double[7];
+
+  /** The Constant INTENSITY_RIGHT, MPEG-1 right factor by position. */
+  private final static double[] INTENSITY_RIGHT = new double[7];
+
+  /** The Constant SYNTHESIS_COSINES, 33 rows of the matrixing. */
+  private final static double[] SYNTHESIS_COSINES =
+      new double[33 * SUBBANDS];
+
+  /** The Constant SYNTHESIS_WINDOW, the full window. */
+  private final static double[] SYNTHESIS_WINDOW = new double[512];
+
+  static {
+    for (int table = 1; table < HUFFMAN_TREES.length; table++) {
+      // tables 16 to 23 and 24 to 31 only differ by their linbits
+      int codes = (table < 16) ? table : (table < 24) ? 16 : 24;
+      if (Mp3Tables.HUFFMAN_CODES[codes] == null) continue;
+      HUFFMAN_TREES[table] =
+          (codes == table) ? buildTree(Mp3Tables.HUFFMAN_CODES[codes],
+              Mp3Tables.HUFFMAN_LENGTHS[codes], true)
+              : HUFFMAN_TREES[codes];
+    }
+    QUAD_TREES[0] =
+        buildTree(Mp3Tables.QUAD_CODES, Mp3Tables.QUAD_LENGTHS, false);
+    int[] invertedCodes = new int[16];
+    int[] fourBits = new int[16];
+    for (int i = 0; i < 16; i++) {
+      invertedCodes[i] = 15 - i;
+      fourBits[i] = 4;
+    }
+    QUAD_TREES[1] = buildTree(invertedCodes, fourBits, false);
+    for (int i = 0; i < POW_43.length; i++) {
+      POW_43[i] = Math.pow(i, 4.0 / 3.0);
+    }
+    for (int i = 0; i < 36; i++) {
+      for (int k = 0; k < 18; k++) {
+        LONG_COSINES[i * 18 + k] =
+            Math.cos(Math.PI / 72 * (2 * i + 1 + 18) * (2 * k + 1));
+      }
+    }
+    for (int i = 0; i < 12; i++) {
+      for (int k = 0; k < 6; k++) {
+        SHORT_COSINES[i * 6 + k] =
+            Math.cos(Math.PI / 24 * (2 * i + 1 + 6) * (2 * k + 1));
+      }
+    }
+    for (int i = 0; i < 36; i++) {
+      WINDOWS[0][i] = Math.sin(Math.PI / 36 * (i + 0.5));
+    }
+    for (int i = 0; i < 18; i++) {
+      WINDOWS[1][i] = WINDOWS[0][i];
+      WINDOWS[3][i + 18] = WINDOWS[0][i + 18];
+    }
+    for (int i = 0; i < 6; i++) {
+      WINDOWS[1][i + 18] = 1;
+      WINDOWS[1][i + 24] = Math.sin(Math.PI / 12 * (i + 0.5 + 6));
+      WINDOWS[3][i + 6] = Math.sin(Math.PI / 12 * (i + 0.5));
+      WINDOWS[3][i + 12] = 1;
+    }
+    for (int i = 0; i < 12; i++) {
+      WINDOWS[SHORT_BLOCK][i] = Math.sin(Math.PI / 12 * (i + 0.5));
+    }
+    for (int i = 0; i < 8; i++) {
+      double c = Mp3Tables.ALIAS_COEFFICIENTS[i];
+      ALIAS_CS[i] = 1 / Math.sqrt(1 + c * c);
+      ALIAS_CA[i] = c / Math.sqrt(1 + c * c);
+    }
+    for (int i = 0; i < 6; i++) {
+      double ratio = Math.tan(i * Math.PI / 12);
+      INTENSITY_LEFT[i] = ratio / (1 + ratio);
+      INTENSITY_RIGHT[i] = 1 / (1 + ratio);
+    }
+    INTENSITY_LEFT[6] = 1;
+    INTENSITY_RIGHT[6] = 0;
+    for (int m = 0; m <= 32; m++) {
+      for (int k = 0; k < SUBBANDS; k++) {
+        SYNTHESIS_COSINES[m * SUBBANDS + k] =
+            Math.cos(m * (2 * k + 1) * Math.PI / 64);
+      }
+    }
+    for (int i = 0; i <= 256; i++) {
+      SYNTHESIS_WINDOW[i] = Mp3Tables.SYNTHESIS_WINDOW[i] / 65536.0;
+    }
+    for (int i = 257; i < 512; i++) {
+      // the sign of the window flips every 64 coefficients
+      SYNTHESIS_WINDOW[i] =
+          (i % 64 == 0) ? SYNTHESIS_WINDOW[512 - i]
+              : -SYNTHESIS_WINDOW[512 - i];
+    }
+  }
+
+  /**
+   * The Class Granule holds the side information and scalefactors of
+   * one channel of one granule.
+   */
+  private static final class Granule {
+
+    /** The bits of the scalefactors and Huffman codes. */
+    private int part23Length;
+
+    /** The pairs of big values. */
+    private int bigValues;
+
+    /** The global gain. */
+    private int globalGain;
+
+    /** The scalefactor compression. */
+    private int scalefacCompress;
+
+    /** True if the block is not a normal long block. */
+    private boolean windowSwitching;
+
+    /** The block type, 0 normal, 1 start, 2 short, 3 stop. */
+    private int blockType;
+
+    /** True if the two lowest subbands of a short block are long. */
+    private boolean mixed;
+
+    /** The Huffman table of every region. */
+    private final int[] tableSelect = new int[3];
+
+    /** The gain of every short window. */
+    private final int[] subblockGain = new int[3];
+
+    /** The scalefactor bands of region 0, minus 1. */
+    private int region0Count;
+
+    /** The scalefactor bands of region 1, minus 1. */
+    private int region1Count;
+
+    /** True if the pre-emphasis table is added to scalefactors. */
+    private boolean preflag;
+
+    /** True if scalefactors are applied in steps of 2. */
+    private boolean scalefacScale;
+
+    /** The count1 table, 0 for A and 1 for B. */
+    private int count1Table;
+
+    /** The long block scalefactors. */
+    private final int[] scalefacLong = new int[22];
+
+    /** The short block scalefactors by band and window. */
+    private final int[][] scalefacShort = new int[13][3];
+
+    /** The illegal MPEG-2 intensity position of long bands. */
+    private final int[] illegalLong = new int[22];
+
+    /** The illegal MPEG-2 intensity position of short bands. */
+    private final int[][] illegalShort = new int[13][3];
+
+    /**
+     * Checks for a short block.
+     *
+     * @return true, if all or part of the granule is short
+     */
+    private boolean isShort() {
+      return windowSwitching && blockType == SHORT_BLOCK;
+    }
+  }
+
+  /**
+   * The Class BitReader reads big-endian bit fields from bytes.
+   */
+  private static final class BitReader {
+
+    /** The bytes. */
+    private byte[] bytes;
+
+    /** The number of bytes that can be read. */
+    private int length;
+
+    /** The position in bits. */
+    private int position;
+
+    /**
+     * Starts reading bytes.
+     *
+     * @param bytes the bytes
+     * @param length the number of bytes that can be read
+     * @param position the position in bits
+     */
+    private void reset(byte[] bytes, int length, int position) {
+      this.bytes = bytes;
+      this.length = length;
+      this.position = position;
+    }
+
+    /**
+     * Reads a field, the bytes after the end read as zeros.
+     *
+     * @param bits the bits of the field, at most 24
+     * @return the value
+     */
+    private int get(int bits) {
+      if (bits == 0) return 0;
+      int index = position >>> 3;
+      int word =
+          (byteAt(index) << 24) | (byteAt(index + 1) << 16)
+              | (byteAt(index + 2) << 8) | byteAt(index + 3);
+      position += bits;
+      return (word << ((position - bits) & 7)) >>> (32 - bits);
+    }
+
+    /**
+     * Reads one bit.
+     *
+     * @return the bit
+     */
+    private int get1() {
+      int bit = (byteAt(position >>> 3) >>> (7 - (position & 7))) & 1;
+      position++;
+      return bit;
+    }
+
+    /**
+     * Gets a byte.
+     *
+     * @param index the index of the byte
+     * @return the unsigned byte, 0 after the end
+     */
+    private int byteAt(int index) {
+      return (index < length) ? bytes[index] & 0xff : 0;
+    }
+
+    /**
+     * Decodes a Huffman code.
+     *
+     * @param tree the decoding tree of the table
+     * @return the value of the code
+     */
+    private int decode(int[] tree) {
+      int node = 0;
+      while (true) {
+        node = tree[node + get1()];
+        if (node <= 0) return ~node;
+      }
+    }
+  }
+
+  /** True if the frame being decoded is MPEG-2 or 2.5. */
+  private boolean lsf;
+
+  /** The main data of the last frames, the bit reservoir. */
+  private final byte[] reservoir =
+      new byte[MAX_MAIN_DATA_BEGIN + MAX_FRAME_LENGTH];
+
+  /** The bytes in the reservoir. */
+  private int reservoirLength;
+
+  /** The side information of the frame. */
+  private final byte[] sideInfo = new byte[32];
+
+  /** The reader of the side information and main data. */
+  private final BitReader bits = new BitReader();
+
+  /** The side information by granule and channel. */
+  private final Granule[][] granules = new Granule[2][2];
+
+  /** The scfsi bits of every channel. */
+  private final int[] scfsi = new int[2];
+
+  /** The quantized values of every channel. */
+  private final int[][] quantized = new int[2][LINES];
+
+  /** The lines after the last non-zero value of every channel. */
+  private final int[] nonZero = new int[2];
+
+  /** The frequency lines of every channel. */
+  private final double[][] lines = new double[2][LINES];
+
+  /** The lines of short blocks in window order. */
+  private final double[] reordered = new double[LINES];
+
+  /** The MPEG-2 scalefactors in bitstream order. */
+  private final int[] scalefactors = new int[39];
+
+  /** The illegal intensity position of every scalefactor. */
+  private final int[] illegalPositions = new int[39];
+
+  /** The intensity position of every line, -1 without intensity. */
+  private final int[] intensityPositions = new int[LINES];
+
+  /** The output of the inverse MDCT of a subband. */
+  private final double[] imdct = new double[36];
+
+  /** The second half of the last inverse MDCT by channel. */
+  private final double[][][] overlap = new double[2][SUBBANDS][SLOTS];
+
+  /** The subband samples of a granule by slot. */
+  private final double[][] subbandSamples = new double[SLOTS][SUBBANDS];
+
+  /** The matrixed subband samples, 33 distinct of the 64. */
+  private final double[] matrixed = new double[33];
+
+  /** The synthesis filterbank buffer by channel. */
+  private final double[][] synthesisBuffers = new double[2][1024];
+
+  /** The position of the newest samples in the buffers. */
+  private final int[] synthesisOffsets = new int[2];
+
+  /**
+   * Instantiates a new frame decoder.
+   */
+  Mp3FrameDecoder() {
+    for (Granule[] granule : granules) {
+      for (int ch = 0; ch < granule.length; ch++) {
+        granule[ch] = new Granule();
+      }
+    }
+  }
+
+  /**
+   * Builds the decoding tree of a Huffman table. Every node is a pair
+   * of entries, one per bit: a positive entry is the index of the
+   * next node, a leaf is the complement of the value.
+   *
+   * @param codes the code of every value
+   * @param lengths the length of every code
+   * @param isPair true if the values are x, y pairs of a square table
+   *          stored as x * 16 + y
+   * @return the tree
+   */
+  private static int[] buildTree(int[] codes, int[] lengths,
+      boolean isPair) {
+    int width = (int) Math.round(Math.sqrt(codes.length));
+    int[] tree = new int[2 * codes.length];
+    int size = 2;
+    for (int value = 0; value < codes.length; value++) {
+      int node = 0;
+      for (int bit = lengths[value] - 1; bit > 0; bit--) {
+        int branch = node + ((codes[value] >>> bit) & 1);
+        if (tree[branch] == 0) {
+          tree[branch] = size;
+          size += 2;
+        }
+        node = tree[branch];
+      }
+      int leaf = isPair ? (value / width) * 16 + value % width : value;
+      tree[node + (codes[value] & 1)] = ~leaf;
+    }
+    return tree;
+  }
+
+  /**
+   * Checks if a frame header is a supported Layer III header.
+   * Free format streams, without bitrate, are not supported.
+   *
+   * @param header the 4 bytes of the header
+   * @return true, if supported
+   */
+  static boolean isSupported(int header) {
+    return (header >>> 21) == 0x7ff
+        && ((header >>> 19) & 3) != RESERVED_VERSION
+        && ((header >>> 17) & 3) == LAYER_3
+        && ((header >>> 12) & 15) != 0 && ((header >>> 12) & 15) != 15
+        && ((header >>> 10) & 3) != 3;
+  }
+
+  /**
+   * Checks for an MPEG-2 or 2.5 low sampling frequency header.
+   *
+   * @param header the header
+   * @return true, if one granule per frame
+   */
+  private static boolean isLsf(int header) {
+    return ((header >>> 19) & 3) != MPEG_1;
+  }
+
+  /**
+   * Gets the index of the sample rate of a header in the tables.
+   *
+   * @param header the header
+   * @return the index, 0 to 8
+   */
+  private static int getSampleRateIndex(int header) {
+    int version = (header >>> 19) & 3;
+    int index = (header >>> 10) & 3;
+    return (version == MPEG_1) ? index : (version == MPEG_2) ? index + 3
+        : index + 6;
+  }
+
+  /**
+   * Gets the sample rate of a header.
+   *
+   * @param header the header
+   * @return the sample rate
+   */
+  static int getSampleRate(int header) {
+    int version = (header >>> 19) & 3;
+    int shift = (version == MPEG_1) ? 0 : (version == MPEG_2) ? 1 : 2;
+    return Mp3Tables.SAMPLE_RATES[(header >>> 10) & 3] >> shift;
+  }
+
+  /**
+   * Gets the channels of a header.
+   *
+   * @param header the header
+   * @return 1 or 2
+   */
+  static int getChannels(int header) {
+    return (((header >>> 6) & 3) == MONO) ? 1 : 2;
+  }
+
+  /**
+   * Gets the samples per channel of a frame.
+   *
+   * @param header the header
+   * @return 1152, or 576 for MPEG-2 and 2.5
+   */
+  static int getSamplesPerFrame(int header) {
+    return isLsf(header) ? LINES : 2 * LINES;
+  }
+
+  /**
+   * Gets the length of a frame, header included.
+   *
+   * @param header the header
+   * @return the length in bytes
+   */
+  static int getFrameLength(int header) {
+    int bitrate =
+        Mp3Tables.BITRATES[isLsf(header) ? 1 : 0][(header >>> 12) & 15];
+    int padding = (header >>> 9) & 1;
+    return (isLsf(header) ? 72 : 144) * bitrate * 1000
+        / getSampleRate(header) + padding;
+  }
+
+  /**
+   * Gets the offset of the main data in a frame, after the header,
+   * the checksum and the side information. The Xing header of
+   * variable bitrate streams is found there.
+   *
+   * @param header the header
+   * @return the offset
+   */
+  static int getMainDataOffset(int header) {
+    boolean hasCrc = ((header >>> 16) & 1) == 0;
+    return 4 + (hasCrc ? 2 : 0) + getSideInfoLength(header);
+  }
+
+  /**
+   * Gets the length of the side information of a frame.
+   *
+   * @param header the header
+   * @return the length in bytes
+   */
+  private static int getSideInfoLength(int header) {
+    if (isLsf(header)) return (getChannels(header) == 1) ? 9 : 17;
+    return (getChannels(header) == 1) ? 17 : 32;
+  }
+
+  /**
+   * Decodes a frame. A frame whose main data starts in frames that
+   * were not decoded, e.g. the first frame after a damaged one, gives
+   * silence.
+   *
+   * @param stream the stream, read with absolute gets
+   * @param offset the offset of the frame
+   * @param header the header of the frame
+   * @param pcm the samples of every channel, between -1 and 1,
+   *          only the first channel is written for mono frames
+   * @return the samples per channel
+   */
+  int decodeFrame(ByteBuffer stream, int offset, int header,
+      double[][] pcm) {
+    lsf = isLsf(header);
+    int channels = getChannels(header);
+    int mode = (header >>> 6) & 3;
+    int modeExtension = (header >>> 4) & 3;
+    int sampleRateIndex = getSampleRateIndex(header);
+    int mainDataOffset = getMainDataOffset(header);
+    int sideInfoLength = getSideInfoLength(header);
+    int end = Math.min(offset + getFrameLength(header), stream.limit());
+    int sideInfoStart = offset + mainDataOffset - sideInfoLength;
+    for (int i = 0; i < sideInfoLength; i++) {
+      sideInfo[i] =
+          (sideInfoStart + i < end) ? stream.get(sideInfoStart + i) : 0;
+    }
+    bits.reset(sideInfo, sideInfoLength, 0);
+    int mainDataBegin = readSideInfo(channels);
+    // append the main data of the frame to the reservoir
+    boolean isComplete = mainDataBegin <= reservoirLength;
+    int mainDataStart = reservoirLength - mainDataBegin;
+    for (int i = offset + mainDataOffset; i < end; i++) {
+      reservoir[reservoirLength++] = stream.get(i);
+    }
+    int granuleCount = lsf ? 1 : 2;
+    int position = mainDataStart * 8;
+    for (int gr = 0; gr < granuleCount; gr++) {
+      if (isComplete) {
+        for (int ch = 0; ch < channels; ch++) {
+          Granule granule = granules[gr][ch];
+          int granuleEnd = position + granule.part23Length;
+          bits.reset(reservoir, reservoirLength, position);
+          if (lsf) {
+            readLsfScalefactors(granule, ch == 1 && mode == JOINT_STEREO
+                && (modeExtension & 1) != 0);
+          } else {
+            readScalefactors(granule, gr, ch);
+          }
+          nonZero[ch] =
+              readHuffman(granule, granuleEnd, quantized[ch],
+                  sampleRateIndex);
+          requantize(granule, quantized[ch], nonZero[ch], lines[ch],
+              sampleRateIndex);
+          position = granuleEnd;
+        }
+        if (channels == 2 && mode == JOINT_STEREO) {
+          stereo(modeExtension, sampleRateIndex, granules[gr][1]);
+        }
+      } else {
+        for (int ch = 0; ch < channels; ch++) {
+          Arrays.fill(lines[ch], 0);
+        }
+      }
+      for (int ch = 0; ch < channels; ch++) {
+        Granule granule = granules[gr][ch];
+        if (!isComplete) granule.windowSwitching = false;
+        reorder(granule, lines[ch], sampleRateIndex);
+        antialias(granule, lines[ch]);
+        hybrid(granule, lines[ch], overlap[ch]);
+        synthesize(ch, pcm[ch], gr * LINES);
+      }
+    }
+    // keep the bytes the next frames may point back to
+    int kept = Math.min(reservoirLength, MAX_MAIN_DATA_BEGIN);
+    System.arraycopy(reservoir, reservoirLength - kept, reservoir, 0,
+        kept);
+    reservoirLength = kept;
+    return granuleCount * LINES;
+  }
+
+  /**
+   * Reads the side information of a frame.
+   *
+   * @param channels the channels
+   * @return the main data begin, the bytes of the main data in the
+   *         reservoir
+   */
+  private int readSideInfo(int channels) {
+    int mainDataBegin;
+    if (lsf) {
+      mainDataBegin = bits.get(8);
+      bits.get(channels == 1 ? 1 : 2);
+    } else {
+      mainDataBegin = bits.get(9);
+      bits.get(channels == 1 ? 5 : 3);
+      for (int ch = 0; ch < channels; ch++) {
+        scfsi[ch] = bits.get(4);
+      }
+    }
+    for (int gr = 0; gr < (lsf ? 1 : 2); gr++) {
+      for (int ch = 0; ch < channels; ch++) {
+        Granule granule = granules[gr][ch];
+        granule.part23Length = bits.get(12);
+        granule.bigValues = Math.min(bits.get(9), LINES / 2);
+        granule.globalGain = bits.get(8);
+        granule.scalefacCompress = bits.get(lsf ? 9 : 4);
+        granule.windowSwitching = bits.get1() == 1;
+        if (granule.windowSwitching) {
+          granule.blockType = bits.get(2);
+          granule.mixed = bits.get1() == 1;
+          granule.tableSelect[0] = bits.get(5);
+          granule.tableSelect[1] = bits.get(5);
+          granule.tableSelect[2] = 0;
+          for (int w = 0; w < 3; w++) {
+            granule.subblockGain[w] = bits.get(3);
+          }
+        } else {
+          granule.blockType = 0;
+          granule.mixed = false;
+          for (int region = 0; region < 3; region++) {
+            granule.tableSelect[region] = bits.get(5);
+          }
+          granule.region0Count = bits.get(4);
+          granule.region1Count = bits.get(3);
+        }
+        granule.preflag = !lsf && bits.get1() == 1;
+        granule.scalefacScale = bits.get1() == 1;
+        granule.count1Table = bits.get1();
+      }
+    }
+    return mainDataBegin;
+  }
+
+  /**
+   * Reads the MPEG-1 scalefactors of a granule. The scalefactors of
+   * the bands whose scfsi bit is set are shared with the first
+   * granule.
+   *
+   * @param granule the granule
+   * @param gr the index of the granule in the frame
+   * @param ch the channel
+   */
+  private void readScalefactors(Granule granule, int gr, int ch) {
+    int slen1 = Mp3Tables.SLEN[0][granule.scalefacCompress];
+    int slen2 = Mp3Tables.SLEN[1][granule.scalefacCompress];
+    if (granule.isShort()) {
+      int sfb = 0;
+      if (granule.mixed) {
+        for (; sfb < 8; sfb++) {
+          granule.scalefacLong[sfb] = bits.get(slen1);
+        }
+        sfb = 3;
+      }
+      for (; sfb < 12; sfb++) {
+        for (int w = 0; w < 3; w++) {
+          granule.scalefacShort[sfb][w] =
+              bits.get(sfb < 6 ? slen1 : slen2);
+        }
+      }
+      Arrays.fill(granule.scalefacShort[12], 0);
+      return;
+    }
+    for (int group = 0; group < 4; group++) {
+      boolean isShared =
+          gr == 1 && ((scfsi[ch] >>> (3 - group)) & 1) != 0;
+      int last = SCFSI_BANDS[group + 1];
+      for (int sfb = SCFSI_BANDS[group]; sfb < last; sfb++) {
+        granule.scalefacLong[sfb] =
+            isShared ? granules[0][ch].scalefacLong[sfb] : bits
+                .get(group < 2 ? slen1 : slen2);
+      }
+    }
+    granule.scalefacLong[21] = 0;
+  }
+
+  /**
+   * Reads the MPEG-2 scalefactors of a granule. They come in four
+   * groups whose sizes and bits depend on the scalefactor compression
+   * and, for the right channel of intensity stereo frames, also give
+   * the intensity positions.
+   *
+   * @param granule the granule
+   * @param isIntensityRight true for the right channel of an intensity
+   *          stereo frame
+   */
+  private void readLsfScalefactors(Granule granule,
+      boolean isIntensityRight) {
+    int compress = granule.scalefacCompress;
+    int[] slen = new int[4];
+    int layout;
+    if (!isIntensityRight) {
+      if (compress < 400) {
+        slen[0] = (compress >>> 4) / 5;
+        slen[1] = (compress >>> 4) % 5;
+        slen[2] = (compress & 15) >>> 2;
+        slen[3] = compress & 3;
+        layout = 0;
+      } else if (compress < 500) {
+        compress -= 400;
+        slen[0] = (compress >>> 2) / 5;
+        slen[1] = (compress >>> 2) % 5;
+        slen[2] = compress & 3;
+        layout = 1;
+      } else {
+        compress -= 500;
+        slen[0] = compress / 3;
+        slen[1] = compress % 3;
+        granule.preflag = true;
+        layout = 2;
+      }
+    } else {
+      compress >>>= 1;
+      if (compress < 180) {
+        slen[0] = compress / 36;
+        slen[1] = (compress % 36) / 6;
+        slen[2] = (compress % 36) % 6;
+        layout = 3;
+      } else if (compress < 244) {
+        compress -= 180;
+        slen[0] = (compress & 63) >>> 4;
+        slen[1] = (compress & 15) >>> 2;
+        slen[2] = compress & 3;
+        layout = 4;
+      } else {
+        compress -= 244;
+        slen[0] = compress / 3;
+        slen[1] = compress % 3;
+        layout = 5;
+      }
+    }
+    int blocks = granule.isShort() ? (granule.mixed ? 2 : 1) : 0;
+    int[] counts = Mp3Tables.SCALEFACTOR_GROUPS[layout][blocks];
+    int count = 0;
+    for (int group = 0; group < 4; group++) {
+      for (int i = 0; i < counts[group]; i++) {
+        scalefactors[count] = bits.get(slen[group]);
+        illegalPositions[count++] = (1 << slen[group]) - 1;
+      }
+    }
+    int k = 0;
+    if (blocks == 0) {
+      for (int sfb = 0; sfb < 21; sfb++, k++) {
+        granule.scalefacLong[sfb] = scalefactors[k];
+        granule.illegalLong[sfb] = illegalPositions[k];
+      }
+      granule.scalefacLong[21] = 0;
+      granule.illegalLong[21] = granule.illegalLong[20];
+      return;
+    }
+    int sfb = 0;
+    if (granule.mixed) {
+      for (; sfb < 6; sfb++, k++) {
+        granule.scalefacLong[sfb] = scalefactors[k];
+        granule.illegalLong[sfb] = illegalPositions[k];
+      }
+      sfb = 3;
+    }
+    for (; sfb < 12; sfb++) {
+      for (int w = 0; w < 3; w++, k++) {
+        granule.scalefacShort[sfb][w] = scalefactors[k];
+        granule.illegalShort[sfb][w] = illegalPositions[k];
+      }
+    }
+    for (int w = 0; w < 3; w++) {
+      granule.scalefacShort[12][w] = 0;
+      granule.illegalShort[12][w] = granule.illegalShort[11][w];
+    }
+  }
+
+  /**
+   * Decodes the Huffman codes of a granule: the big values, in up to
+   * three regions with their own tables, then quadruples of values
+   * between -1 and 1 up to the end of the granule's bits.
+   *
+   * @param granule the granule
+   * @param end the position of the end of the granule's bits
+   * @param values the quantized values
+   * @param sampleRateIndex the index of the sample rate
+   * @return the lines after the last decoded value
+   */
+  private int readHuffman(Granule granule, int end, int[] values,
+      int sampleRateIndex) {
+    int[] longBands = Mp3Tables.LONG_BANDS[sampleRateIndex];
+    int bigEnd = granule.bigValues * 2;
+    int region1;
+    int region2;
+    if (granule.windowSwitching) {
+      region1 =
+          (granule.blockType == SHORT_BLOCK && !granule.mixed)
+              ? Mp3Tables.SHORT_BANDS[sampleRateIndex][3] * 3
+              : longBands[8];
+      region2 = LINES;
+    } else {
+      region1 = longBands[Math.min(granule.region0Count + 1, 22)];
+      region2 =
+          longBands[Math.min(granule.region0Count
+              + granule.region1Count + 2, 22)];
+    }
+    int i = 0;
+    while (i < bigEnd) {
+      int region = (i < region1) ? 0 : (i < region2) ? 1 : 2;
+      int limit =
+          Math.min(bigEnd, (region == 0) ? region1
+              : (region == 1) ? region2 : LINES);
+      int table = granule.tableSelect[region];
+      int[] tree = HUFFMAN_TREES[table];
+      int linbits = Mp3Tables.LINBITS[table];
+      if (tree == null) {
+        // table 0, or the unused tables 4 and 14
+        for (; i < limit; i++) {
+          values[i] = 0;
+        }
+        continue;
+      }
+      for (; i < limit; i += 2) {
+        int pair = bits.decode(tree);
+        int x = pair >>> 4;
+        int y = pair & 15;
+        if (x == 15 && linbits > 0) x += bits.get(linbits);
+        if (x != 0 && bits.get1() == 1) x = -x;
+        if (y == 15 && linbits > 0) y += bits.get(linbits);
+        if (y != 0 && bits.get1() == 1) y = -y;
+        values[i] = x;
+        values[i + 1] = y;
+      }
+      if (bits.position > end) {
+        // damaged granule, decoded as silence
+        Arrays.fill(values, 0);
+        return 0;
+      }
+    }
+    int[] quadTree = QUAD_TREES[granule.count1Table];
+    while (i + 4 <= LINES && bits.position < end) {
+      int quad = bits.decode(quadTree);
+      for (int shift = 3; shift >= 0; shift--) {
+        int value = (quad >>> shift) & 1;
+        if (value != 0 && bits.get1() == 1) value = -1;
+        values[i + 3 - shift] = value;
+      }
+      if (bits.position > end) {
+        // the last quadruple ran past the end of the granule
+        break;
+      }
+      i += 4;
+    }
+    Arrays.fill(values, i, LINES, 0);
+    return i;
+  }
+
+  /**
+   * Requantizes the values of a granule: every line is scaled by the
+   * global gain, the subblock gain of its window and the scalefactor
+   * of its band.
+   *
+   * @param granule the granule
+   * @param values the quantized values
+   * @param count the lines after the last non-zero value
+   * @param lines the frequency lines
+   * @param sampleRateIndex the index of the sample rate
+   */
+  private void requantize(Granule granule, int[] values, int count,
+      double[] lines, int sampleRateIndex) {
+    int[] longBands = Mp3Tables.LONG_BANDS[sampleRateIndex];
+    int[] shortBands = Mp3Tables.SHORT_BANDS[sampleRateIndex];
+    int shift = granule.scalefacScale ? 2 : 1;
+    int longEnd = LINES;
+    if (granule.isShort()) {
+      // the long part of mixed blocks
+      longEnd = granule.mixed ? longBands[lsf ? 6 : 8] : 0;
+    }
+    longEnd = Math.min(longEnd, count);
+    for (int sfb = 0; longBands[sfb] < longEnd; sfb++) {
+      int scalefactor =
+          granule.scalefacLong[sfb]
+              + (granule.preflag ? Mp3Tables.PRETAB[sfb] : 0);
+      double scale =
+          Math.pow(2, (granule.globalGain - 210 - (scalefactor << shift))
+              / 4.0);
+      int last = Math.min(longBands[sfb + 1], longEnd);
+      for (int i = longBands[sfb]; i < last; i++) {
+        lines[i] = requantize(values[i], scale);
+      }
+    }
+    if (granule.isShort()) {
+      for (int sfb = granule.mixed ? 3 : 0; sfb < 13; sfb++) {
+        int width = shortBands[sfb + 1] - shortBands[sfb];
+        for (int w = 0; w < 3; w++) {
+          int start = shortBands[sfb] * 3 + w * width;
+          if (start >= count) break;
+          int gain =
+              granule.globalGain - 210 - 8 * granule.subblockGain[w]
+                  - (granule.scalefacShort[sfb][w] << shift);
+          double scale = Math.pow(2, gain / 4.0);
+          int last = Math.min(start + width, count);
+          for (int i = start; i < last; i++) {
+            lines[i] = requantize(values[i], scale);
+          }
+        }
+      }
+    }
+    Arrays.fill(lines, count, LINES, 0);
+  }
+
+  /**
+   * Requantizes one value.
+   *
+   * @param value the quantized value
+   * @param scale the scale of its band
+   * @return the line
+   */
+  private static double requantize(int value, double scale) {
+    if (value == 0) return 0;
+    return (value > 0) ? POW_43[value] * scale : -POW_43[-value] * scale;
+  }
+
+  /**
+   * Applies intensity and middle/side stereo to a joint stereo
+   * granule. Intensity stereo codes the bands above the last non-zero
+   * band of the right channel as the left channel and a position,
+   * the other lines are middle and side when that mode is on.
+   *
+   * @param modeExtension the mode extension of the header
+   * @param sampleRateIndex the index of the sample rate
+   * @param right the granule of the right channel
+   */
+  private void stereo(int modeExtension, int sampleRateIndex,
+      Granule right) {
+    boolean isMiddleSide = (modeExtension & 2) != 0;
+    Arrays.fill(intensityPositions, -1);
+    if ((modeExtension & 1) != 0) {
+      findIntensityPositions(right, sampleRateIndex);
+    }
+    double[] left = lines[0];
+    double[] rightLines = lines[1];
+    // MPEG-2 intensity factors, io^((position + 1) / 2)
+    double io =
+        ((right.scalefacCompress & 1) != 0) ? Math.sqrt(0.5) : Math
+            .sqrt(Math.sqrt(0.5));
+    double half = Math.sqrt(0.5);
+    for (int i = 0; i < LINES; i++) {
+      int position = intensityPositions[i];
+      if (position >= 0) {
+        double leftFactor;
+        double rightFactor;
+        if (!lsf) {
+          leftFactor = INTENSITY_LEFT[position];
+          rightFactor = INTENSITY_RIGHT[position];
+        } else if ((position & 1) != 0) {
+          leftFactor = Math.pow(io, (position + 1) / 2);
+          rightFactor = 1;
+        } else {
+          leftFactor = 1;
+          rightFactor = Math.pow(io, position / 2);
+        }
+        double value = left[i];
+        left[i] = value * leftFactor;
+        rightLines[i] = value * rightFactor;
+      } else if (isMiddleSide) {
+        double middle = left[i];
+        double side = rightLines[i];
+        left[i] = (middle + side) * half;
+        rightLines[i] = (middle - side) * half;
+      }
+    }
+  }
+
+  /**
+   * Finds the intensity position of every line of the intensity coded
+   * bands, the bands of the right channel above its last non-zero
+   * band, per window for short blocks. The positions of the last band,
+   * which has no scalefactor, are the ones of the band below. Illegal
+   * positions leave the band to middle/side stereo.
+   *
+   * @param right the granule of the right channel
+   * @param sampleRateIndex the index of the sample rate
+   */
+  private void findIntensityPositions(Granule right,
+      int sampleRateIndex) {
+    double[] rightLines = lines[1];
+    int[] longBands = Mp3Tables.LONG_BANDS[sampleRateIndex];
+    int longEnd = 22;
+    if (right.isShort()) {
+      int[] shortBands = Mp3Tables.SHORT_BANDS[sampleRateIndex];
+      int first = right.mixed ? 3 : 0;
+      boolean isShortZero = true;
+      for (int w = 0; w < 3; w++) {
+        int last = first - 1;
+        for (int sfb = first; sfb < 13; sfb++) {
+          int width = shortBands[sfb + 1] - shortBands[sfb];
+          int start = shortBands[sfb] * 3 + w * width;
+          for (int i = start; i < start + width; i++) {
+            if (rightLines[i] != 0) last = sfb;
+          }
+        }
+        if (last >= first) isShortZero = false;
+        for (int sfb = last + 1; sfb < 13; sfb++) {
+          int band = Math.min(sfb, 11);
+          int position = right.scalefacShort[band][w];
+          if (isIllegal(position, right.illegalShort[band][w])) continue;
+          int width = shortBands[sfb + 1] - shortBands[sfb];
+          int start = shortBands[sfb] * 3 + w * width;
+          Arrays.fill(intensityPositions, start, start + width, position);
+        }
+      }
+      // the long part of a mixed block is only intensity coded when
+      // the whole short part is
+      if (!right.mixed || !isShortZero) return;
+      longEnd = lsf ? 6 : 8;
+    }
+    int last = -1;
+    for (int i = longBands[longEnd] - 1; i >= 0 && last < 0; i--) {
+      if (rightLines[i] != 0) last = i;
+    }
+    for (int sfb = 0; sfb < longEnd; sfb++) {
+      if (longBands[sfb] <= last) continue;
+      int band = Math.min(sfb, 20);
+      int position = right.scalefacLong[band];
+      if (isIllegal(position, right.illegalLong[band])) continue;
+      Arrays.fill(intensityPositions, longBands[sfb],
+          longBands[sfb + 1], position);
+    }
+  }
+
+  /**
+   * Checks for an illegal intensity position: 7 and above for MPEG-1,
+   * the largest value of its scalefactor for MPEG-2.
+   *
+   * @param position the intensity position
+   * @param illegal the illegal MPEG-2 position
+   * @return true, if illegal
+   */
+  private boolean isIllegal(int position, int illegal) {
+    return lsf ? position == illegal
+        : position >= INTENSITY_LEFT.length;
+  }
+
+  /**
+   * Reorders the lines of short blocks from band order, where the
+   * three windows of a band follow each other, to the order of the
+   * inverse MDCT: line k of window w of a subband at 3 * k + w.
+   *
+   * @param granule the granule
+   * @param lines the lines
+   * @param sampleRateIndex the index of the sample rate
+   */
+  private void reorder(Granule granule, double[] lines,
+      int sampleRateIndex) {
+    if (!granule.isShort()) return;
+    int[] shortBands = Mp3Tables.SHORT_BANDS[sampleRateIndex];
+    int first = granule.mixed ? 3 : 0;
+    for (int sfb = first; sfb < 13; sfb++) {
+      int start = shortBands[sfb];
+      int width = shortBands[sfb + 1] - start;
+      for (int w = 0; w < 3; w++) {
+        for (int f = 0; f < width; f++) {
+          reordered[3 * (start + f) + w] =
+              lines[start * 3 + w * width + f];
+        }
+      }
+    }
+    int start = shortBands[first] * 3;
+    System.arraycopy(reordered, start, lines, start, LINES - start);
+  }
+
+  /**
+   * Reduces the aliasing between adjacent subbands of long blocks
+   * with eight butterflies per boundary. Short blocks have none, mixed
+   * blocks only between their two long subbands.
+   *
+   * @param granule the granule
+   * @param lines the lines
+   */
+  private static void antialias(Granule granule, double[] lines) {
+    int subbands = SUBBANDS;
+    if (granule.isShort()) subbands = granule.mixed ? 2 : 0;
+    for (int sb = 1; sb < subbands; sb++) {
+      int boundary = sb * SLOTS;
+      for (int i = 0; i < 8; i++) {
+        double below = lines[boundary - 1 - i];
+        double above = lines[boundary + i];
+        lines[boundary - 1 - i] =
+            below * ALIAS_CS[i] - above * ALIAS_CA[i];
+        lines[boundary + i] = above * ALIAS_CS[i] + below * ALIAS_CA[i];
+      }
+    }
+  }
+
+  /**
+   * Transforms the lines of every subband back to 18 samples with the
+   * inverse MDCT of its block type, windowed and overlapped with the
+   * second half of the previous granule. The odd samples of odd
+   * subbands are inverted for the synthesis filterbank.
+   *
+   * @param granule the granule
+   * @param lines the lines
+   * @param overlap the second halves of the channel by subband
+   */
+  private void hybrid(Granule granule, double[] lines,
+      double[][] overlap) {
+    for (int sb = 0; sb < SUBBANDS; sb++) {
+      int base = sb * SLOTS;
+      boolean isZero = true;
+      for (int k = base; k < base + SLOTS && isZero; k++) {
+        isZero = lines[k] == 0;
+      }
+      int blockType = granule.windowSwitching ? granule.blockType : 0;
+      if (granule.mixed && sb < 2) blockType = 0;
+      Arrays.fill(imdct, 0);
+      if (isZero) {
+        // nothing to transform
+      } else if (blockType == SHORT_BLOCK) {
+        double[] window = WINDOWS[SHORT_BLOCK];
+        for (int w = 0; w < 3; w++) {
+          for (int i = 0; i < 12; i++) {
+            double sum = 0;
+            for (int k = 0; k < 6; k++) {
+              sum += lines[base + 3 * k + w] * SHORT_COSINES[i * 6 + k];
+            }
+            imdct[6 + 6 * w + i] += sum * window[i];
+          }
+        }
+      } else {
+        double[] window = WINDOWS[blockType];
+        for (int i = 0; i < 36; i++) {
+          double sum = 0;
+          for (int k = 0; k < 18; k++) {
+            sum += lines[base + k] * LONG_COSINES[i * 18 + k];
+          }
+          imdct[i] = sum * window[i];
+        }
+      }
+      double[] previous = overlap[sb];
+      for (int i = 0; i < SLOTS; i++) {
+        double sample = imdct[i] + previous[i];
+        previous[i] = imdct[i + SLOTS];
+        if ((sb & i & 1) == 1) sample = -sample;
+        subbandSamples[i][sb] = sample;
+      }
+    }
+  }
+
+  /**
+   * Runs the polyphase synthesis filterbank over the 18 slots of
+   * subband samples of a granule, 32 samples per slot.
+   *
+   * @param ch the channel
+   * @param pcm the samples of the channel
+   * @param offset the offset of the granule in the samples
+   */
+  private void synthesize(int ch, double[] pcm, int offset) {
+    double[] buffer = synthesisBuffers[ch];
+    for (int slot = 0; slot < SLOTS; slot++) {
+      double[] samples = subbandSamples[slot];
+      int start = (synthesisOffsets[ch] - 64) & 1023;
+      synthesisOffsets[ch] = start;
+      // cos((16 + i)(2k + 1)pi/64) only takes 33 distinct rows
+      for (int m = 0; m <= 32; m++) {
+        double sum = 0;
+        int row = m * SUBBANDS;
+        for (int k = 0; k < SUBBANDS; k++) {
+          sum += SYNTHESIS_COSINES[row + k] * samples[k];
+        }
+        matrixed[m] = sum;
+      }
+      for (int i = 0; i < 64; i++) {
+        int m = i + 16;
+        buffer[start + i] =
+            (m <= 32) ? matrixed[m] : (m < 64) ? -matrixed[64 - m]
+                : -matrixed[m - 64];
+      }
+      for (int j = 0; j < SUBBANDS; j++) {
+        double sum = 0;
+        for (int i = 0; i < 8; i++) {
+          sum +=
+              buffer[(start + 128 * i + j) & 1023]
+                  * SYNTHESIS_WINDOW[64 * i + j]
+                  + buffer[(start + 128 * i + 96 + j) & 1023]
+                  * SYNTHESIS_WINDOW[64 * i + 32 + j];
+        }
+        pcm[offset + slot * SUBBANDS + j] = sum;
+      }
+    }
+  }
+}
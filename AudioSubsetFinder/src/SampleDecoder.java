@@ -0,0 +1,197 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The Class SampleDecoder converts the interleaved PCM data of a wav
+ * file into samples of one channel. Samples are decoded with absolute
+ * little-endian gets straight from the data chunk into a reusable
+ * double[], so no object is created per sample. Integer samples of
+ * any width are scaled to the 16-bit range, float samples in [-1, 1]
+ * as well, so all formats give fingerprints of the same scale.
+ */
+public class SampleDecoder {
+
+  /** The format tag of integer PCM data. */
+  public static final int FORMAT_PCM = 1;
+
+  /** The format tag of IEEE float data. */
+  public static final int FORMAT_IEEE_FLOAT = 3;
+
+  /** The format tag of WAVE_FORMAT_EXTENSIBLE headers. */
+  public static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+  /**
+   * The channel index selecting the mid channel, the mean of the
+   * left and right channels.
+   */
+  public static final int MID_CHANNEL = -1;
+
+  /** The bytes of one sample of one channel. */
+  private final int bytesPerSample;
+
+  /** The bytes of one sample of all channels. */
+  private final int blockAlign;
+
+  /** True if the samples are IEEE floats. */
+  private final boolean isFloat;
+
+  /**
+   * Instantiates a new sample decoder.
+   * 
+   * @param bytesPerSample the bytes of one sample of one channel
+   * @param channels the channels
+   * @param isFloat true if the samples are IEEE floats
+   */
+  private SampleDecoder(int bytesPerSample, int channels,
+      boolean isFloat) {
+    this.bytesPerSample = bytesPerSample;
+    this.blockAlign = bytesPerSample * channels;
+    this.isFloat = isFloat;
+  }
+
+  /**
+   * Gets a decoder for the given format.
+   * 
+   * @param audioFormat the format tag, {@link #FORMAT_PCM} or
+   *          {@link #FORMAT_IEEE_FLOAT}
+   * @param bitsPerSample the bits per sample: 8, 16, 24 or 32 for PCM,
+   *          32 for float
+   * @param channels the channels
+   * @return the decoder, or null if the format is not supported
+   */
+  public static SampleDecoder forFormat(int audioFormat,
+      int bitsPerSample, int channels) {
+    if (channels < 1) return null;
+    if (audioFormat == FORMAT_PCM
+        && (bitsPerSample == 8 || bitsPerSample == 16
+            || bitsPerSample == 24 || bitsPerSample == 32)) {
+      return new SampleDecoder(bitsPerSample / 8, channels, false);
+    }
+    if (audioFormat == FORMAT_IEEE_FLOAT && bitsPerSample == 32) {
+      return new SampleDecoder(4, channels, true);
+    }
+    return null;
+  }
+
+  /**
+   * Gets the bytes of one sample of all channels.
+   * 
+   * @return the block align
+   */
+  public int getBlockAlign() {
+    return blockAlign;
+  }
+
+  /**
+   * Decodes consecutive samples of one channel.
+   * 
+   * @param data the interleaved PCM data, in little-endian order
+   * @param offset the offset of the first sample block in the data
+   * @param channel the channel, 0 for left, or {@link #MID_CHANNEL}
+   * @param samples the decoded samples
+   * @param count the number of samples to decode
+   */
+  public void decode(ByteBuffer data, int offset, int channel,
+      double[] samples, int count) {
+    if (channel == MID_CHANNEL) {
+      int index = offset;
+      for (int i = 0; i < count; i++, index += blockAlign) {
+        samples[i] =
+            (sampleAt(data, index) + sampleAt(data, index
+                + bytesPerSample)) / 2;
+      }
+      return;
+    }
+    int index = offset + channel * bytesPerSample;
+    if (isFloat) {
+      for (int i = 0; i < count; i++, index += blockAlign) {
+        samples[i] = data.getFloat(index) * 32768.0;
+      }
+      return;
+    }
+    switch (bytesPerSample) {
+      case 1:
+        // 8-bit samples are unsigned
+        for (int i = 0; i < count; i++, index += blockAlign) {
+          samples[i] = ((data.get(index) & 0xff) - 128) << 8;
+        }
+        break;
+      case 2:
+        for (int i = 0; i < count; i++, index += blockAlign) {
+          samples[i] = data.getShort(index);
+        }
+        break;
+      case 3:
+        for (int i = 0; i < count; i++, index += blockAlign) {
+          samples[i] = readInt24(data, index) / 256.0;
+        }
+        break;
+      default:
+        for (int i = 0; i < count; i++, index += blockAlign) {
+          samples[i] = data.getInt(index) / 65536.0;
+        }
+        break;
+    }
+  }
+
+  /**
+   * Decodes consecutive samples of several channels in one pass over
+   * the interleaved data.
+   * 
+   * @param data the interleaved PCM data, in little-endian order
+   * @param offset the offset of the first sample block in the data
+   * @param channels the channels to decode, 0 for left, or a single
+   *          {@link #MID_CHANNEL}
+   * @param samples the decoded samples of every channel
+   * @param count the number of samples to decode per channel
+   */
+  public void decode(ByteBuffer data, int offset, int[] channels,
+      double[][] samples, int count) {
+    if (channels.length == 1) {
+      decode(data, offset, channels[0], samples[0], count);
+      return;
+    }
+    int index = offset;
+    for (int i = 0; i < count; i++, index += blockAlign) {
+      for (int c = 0; c < channels.length; c++) {
+        samples[c][i] =
+            sampleAt(data, index + channels[c] * bytesPerSample);
+      }
+    }
+  }
+
+  /**
+   * Decodes one sample.
+   * 
+   * @param data the interleaved PCM data, in little-endian order
+   * @param index the index of the first byte of the sample
+   * @return the sample
+   */
+  private double sampleAt(ByteBuffer data, int index) {
+    if (isFloat) {
+      return data.getFloat(index) * 32768.0;
+    }
+    switch (bytesPerSample) {
+      case 1:
+        return ((data.get(index) & 0xff) - 128) << 8;
+      case 2:
+        return data.getShort(index);
+      case 3:
+        return readInt24(data, index) / 256.0;
+      default:
+        return data.getInt(index) / 65536.0;
+    }
+  }
+
+  /**
+   * Reads a little-endian signed 24-bit integer.
+   * 
+   * @param data the data
+   * @param index the index of the first byte
+   * @return the integer
+   */
+  private static int readInt24(ByteBuffer data, int index) {
+    return (data.get(index) & 0xff)
+        | ((data.get(index + 1) & 0xff) << 8)
+        | (data.get(index + 2) << 16);
+  }
+}
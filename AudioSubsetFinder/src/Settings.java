@@ -0,0 +1,48 @@
+/**
+ * The Class Settings reads the optional tuning switches of a run. The
+ * command line is fixed by the specification, so the switches are
+ * passed as system properties, e.g. java_args="-Darc5500.frame=pow2"
+ * for the arc5500 executable.
+ */
+public class Settings {
+
+  /**
+   * Gets a string setting.
+   * 
+   * @param key the name of the system property
+   * @param defaultValue the value used when the property is not set
+   * @return the value of the setting
+   */
+  public static String getString(String key, String defaultValue) {
+    String value = System.getProperty(key);
+    if (value == null || value.trim().isEmpty()) return defaultValue;
+    return value.trim();
+  }
+
+  /**
+   * Gets an integer setting.
+   * 
+   * @param key the name of the system property
+   * @param defaultValue the value used when the property is not set
+   *          or is not a number
+   * @return the value of the setting
+   */
+  public static int getInt(String key, int defaultValue) {
+    try {
+      return Integer.parseInt(getString(key, "" + defaultValue));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Gets a boolean setting.
+   * 
+   * @param key the name of the system property
+   * @param defaultValue the value used when the property is not set
+   * @return the value of the setting
+   */
+  public static boolean getBoolean(String key, boolean defaultValue) {
+    return Boolean.parseBoolean(getString(key, "" + defaultValue));
+  }
+}
@@ -0,0 +1,409 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The Class WavFile gives access to the format and the data chunk of a
+ * wav file without copying the whole file onto the heap. Files that
+ * fit in one mapping are memory-mapped and the data is a slice of the
+ * mapping, so samples are read straight from the page cache. Larger
+ * files, or all files in streaming mode, are streamed: the data chunk
+ * is read from the file channel one block at a time, so memory use
+ * does not grow with the length of the recording. The output of a
+ * decoder is piped: its blocks are read once, in order, from the
+ * stream and the length of its data is only known at its end.
+ */
+public class WavFile {
+
+  /** The Constant DATA_CHUNK_ID. */
+  private final static byte[] DATA_CHUNK_ID = {0x64, 0x61, 0x74, 0x61};
+
+  /** The most bytes read before the data chunk of a piped file. */
+  private final static int MAX_HEADER_LENGTH = 1 << 20;
+
+  /** The format, null if the file is not a readable wav file. */
+  private final WavFormat format;
+
+  /** The data chunk in little-endian order, null if streamed. */
+  private final ByteBuffer data;
+
+  /** The channel a streamed file is read from, null if mapped. */
+  private final FileChannel channel;
+
+  /** The stream a piped file is read from, null if not piped. */
+  private final DataInputStream stream;
+
+  /** The position of a piped file in its data chunk. */
+  private long position;
+
+  /**
+   * Instantiates a new mapped or in-memory wav file.
+   * 
+   * @param format the format
+   * @param data the data chunk
+   */
+  private WavFile(WavFormat format, ByteBuffer data) {
+    this.format = format;
+    this.data = data;
+    this.channel = null;
+    this.stream = null;
+  }
+
+  /**
+   * Instantiates a new streamed wav file.
+   * 
+   * @param format the format
+   * @param channel the channel of the file
+   */
+  private WavFile(WavFormat format, FileChannel channel) {
+    this.format = format;
+    this.data = null;
+    this.channel = channel;
+    this.stream = null;
+  }
+
+  /**
+   * Instantiates a new piped wav file.
+   * 
+   * @param format the format
+   * @param stream the stream, positioned at the start of the data
+   */
+  private WavFile(WavFormat format, DataInputStream stream) {
+    this.format = format;
+    this.data = null;
+    this.channel = null;
+    this.stream = stream;
+  }
+
+  /**
+   * Opens a wav file. It is memory-mapped if it fits in one mapping,
+   * unless the arc5500.streaming setting asks to stream every file.
+   * A streamed file must be closed.
+   * 
+   * @param file the file
+   * @return the wav file, without format and with empty data if the
+   *         file has no format or no data chunk
+   * @throws Exception the exception
+   */
+  public static WavFile open(File file) throws Exception {
+    boolean streaming =
+        Settings.getBoolean(Constants.STREAMING_SETTING, false);
+    RandomAccessFile randomAccessFile =
+        new RandomAccessFile(file, "r");
+    FileChannel channel = randomAccessFile.getChannel();
+    try {
+      long size = channel.size();
+      if (streaming || size > Integer.MAX_VALUE) {
+        WavFormat format = WavFormat.read(channel);
+        if (format == null || !format.hasData()) return empty();
+        // the channel now belongs to the streamed file
+        WavFile wav = new WavFile(format, channel);
+        channel = null;
+        return wav;
+      }
+      // the mapping stays valid after the channel is closed
+      return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    } finally {
+      if (channel != null) randomAccessFile.close();
+    }
+  }
+
+  /**
+   * Reads the wav output of a decoder from a pipe, up to the start of
+   * its data chunk. The length in the header of the data chunk is
+   * ignored, a decoder writing to a pipe cannot know it in advance:
+   * the data runs to the end of the stream. The file must be closed.
+   * 
+   * @param in the output of the decoder, closed with the file
+   * @return the wav file, without format and with empty data if the
+   *         output has no format or no data chunk
+   */
+  public static WavFile pipe(InputStream in) {
+    try {
+      DataInputStream input = new DataInputStream(in);
+      // copy the header up to the data chunk, skipped chunks are
+      // only a few bytes long
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      byte[] riff = new byte[12];
+      input.readFully(riff);
+      header.write(riff);
+      while (true) {
+        byte[] chunk = new byte[8];
+        input.readFully(chunk);
+        header.write(chunk);
+        if (Arrays.equals(Arrays.copyOf(chunk, 4), DATA_CHUNK_ID)) break;
+        long size =
+            ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN)
+                .getInt(4) & 0xffffffffL;
+        // chunks are padded to an even length
+        size += size & 1;
+        if (header.size() + size > MAX_HEADER_LENGTH) {
+          throw new IOException("header too long");
+        }
+        byte[] body = new byte[(int) size];
+        input.readFully(body);
+        header.write(body);
+      }
+      WavFormat format =
+          WavFormat.parse(ByteBuffer.wrap(header.toByteArray()));
+      if (format != null && format.hasData()) {
+        return new WavFile(format, input);
+      }
+    } catch (IOException e) {
+      // not a wav file, or the decoder failed
+    }
+    try {
+      in.close();
+    } catch (IOException e) {}
+    return empty();
+  }
+
+  /**
+   * Wraps the bytes of a wav file already in memory.
+   * 
+   * @param fileBytes the bytes of the file
+   * @return the wav file, without format and with empty data if the
+   *         file has no format or no data chunk
+   */
+  public static WavFile wrap(byte[] fileBytes) {
+    return wrap(ByteBuffer.wrap(fileBytes));
+  }
+
+  /**
+   * Reads the format of a wav file in memory and slices its data
+   * chunk.
+   * 
+   * @param file the content of the file
+   * @return the wav file
+   */
+  private static WavFile wrap(ByteBuffer file) {
+    WavFormat format = WavFormat.parse(file);
+    if (format == null || !format.hasData()) return empty();
+    return new WavFile(format, slice(file, (int) format.getDataOffset(),
+        (int) format.getDataLength()).order(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  /**
+   * Gets a wav file without format nor data.
+   * 
+   * @return the wav file
+   */
+  private static WavFile empty() {
+    return new WavFile(null, ByteBuffer.allocate(0).order(
+        ByteOrder.LITTLE_ENDIAN));
+  }
+
+  /**
+   * Gets a slice of a buffer.
+   * 
+   * @param buffer the buffer
+   * @param offset the offset of the slice
+   * @param length the length of the slice
+   * @return the slice
+   */
+  private static ByteBuffer slice(ByteBuffer buffer, int offset,
+      int length) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    duplicate.limit(offset + length);
+    return duplicate.slice();
+  }
+
+  /**
+   * Reads from a channel until the buffer is full or the end of the
+   * file is reached.
+   * 
+   * @param channel the channel
+   * @param buffer the buffer
+   * @param position the position in the file
+   * @throws IOException Signals that an I/O exception has
+   *           occurred.
+   */
+  private static void readFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) break;
+      position += read;
+    }
+  }
+
+  /**
+   * Gets the format, read once from the chunk list of the file.
+   * 
+   * @return the format, null if the file has no format or no data
+   *         chunk
+   */
+  public WavFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Gets the data chunk in little-endian order. Samples must be read
+   * with absolute gets so that threads can share the buffer.
+   * 
+   * @return the data chunk, null if the file is streamed
+   */
+  public ByteBuffer getData() {
+    return data;
+  }
+
+  /**
+   * Gets the length of the data chunk.
+   * 
+   * @return the data length, -1 if the file is piped
+   */
+  public long getDataLength() {
+    if (stream != null) return -1;
+    if (data != null) return data.limit();
+    return (format == null) ? 0 : format.getDataLength();
+  }
+
+  /**
+   * Checks if the file is piped, its blocks must then be read once,
+   * in order, by one thread until {@link #readBlock} returns null.
+   * 
+   * @return true, if piped
+   */
+  public boolean isPiped() {
+    return stream != null;
+  }
+
+  /**
+   * Reads a block of the data chunk. A mapped file returns a slice of
+   * its mapping. A streamed file reads the block into the given
+   * buffer, reallocating it only if it is too small; positional reads
+   * let threads read blocks concurrently, each with its own buffer.
+   * 
+   * A piped file skips the bytes up to the block and reads it into
+   * the given buffer.
+   * 
+   * The bytes of a streamed file past the end of the file, when its
+   * data chunk is cut short, are zeros.
+   * 
+   * @param offset the offset of the block in the data chunk
+   * @param length the length of the block
+   * @param buffer the buffer to reuse, may be null
+   * @return the block in little-endian order, read with absolute
+   *         gets from index 0, or null if a piped file ends before
+   *         the end of the block
+   * @throws UncheckedIOException if a streamed or piped file cannot
+   *           be read, so that its fingerprint fails instead of going
+   *           silent
+   */
+  public ByteBuffer readBlock(long offset, int length,
+      ByteBuffer buffer) {
+    if (data != null) {
+      return slice(data, (int) offset, length).order(
+          ByteOrder.LITTLE_ENDIAN);
+    }
+    if (buffer == null || buffer.capacity() < length) {
+      buffer = ByteBuffer.allocate(length);
+    }
+    if (stream != null) {
+      return readPipedBlock(offset, length, buffer);
+    }
+    buffer.clear();
+    buffer.limit(length);
+    try {
+      readFully(channel, buffer, format.getDataOffset() + offset);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    // zero what is past the end of the file
+    while (buffer.hasRemaining()) {
+      buffer.put((byte) 0);
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+  /**
+   * Reads the next block of a piped file.
+   * 
+   * @param offset the offset of the block, not before the end of the
+   *          previous block
+   * @param length the length of the block
+   * @param buffer the buffer, with room for the block
+   * @return the block, or null if the stream ends before its end
+   * @throws UncheckedIOException if the stream cannot be read, e.g.
+   *           the decoder failed, so that a fingerprint is never cut
+   *           short silently
+   */
+  private ByteBuffer readPipedBlock(long offset, int length,
+      ByteBuffer buffer) {
+    try {
+      while (position < offset) {
+        long skipped = stream.skip(offset - position);
+        if (skipped <= 0) {
+          // skip may stop early, read tells the end of the stream
+          if (stream.read() < 0) return null;
+          skipped = 1;
+        }
+        position += skipped;
+      }
+      buffer.clear();
+      stream.readFully(buffer.array(), buffer.arrayOffset(), length);
+      position += length;
+    } catch (EOFException e) {
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    buffer.limit(length);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+  /**
+   * Reads the next bytes of a piped file into an in-memory wav file
+   * of the same format, whose blocks several threads can then read.
+   * 
+   * @param length the most bytes read
+   * @return the wav file, with fewer bytes if the stream ends first
+   * @throws UncheckedIOException if the stream cannot be read, e.g.
+   *           the decoder failed, rather than returning the bytes read
+   *           so far as if the stream had ended
+   */
+  public WavFile readPiped(int length) {
+    byte[] bytes = new byte[length];
+    int count = 0;
+    try {
+      while (count < length) {
+        int read = stream.read(bytes, count, length - count);
+        if (read < 0) break;
+        count += read;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    position += count;
+    return new WavFile(format, ByteBuffer.wrap(bytes, 0, count)
+        .slice().order(ByteOrder.LITTLE_ENDIAN));
+  }
+
+  /**
+   * Closes the channel of a streamed file or stops the decoder of a
+   * piped file, nothing to do for mapped files.
+   */
+  public void close() {
+    if (stream != null) {
+      try {
+        stream.close();
+      } catch (IOException e) {}
+    }
+    if (channel == null) return;
+    try {
+      channel.close();
+    } catch (IOException e) {}
+  }
+}
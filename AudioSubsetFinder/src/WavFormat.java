@@ -0,0 +1,287 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * The Class WavFormat holds the format of a wav file and the position
+ * of its data chunk. It is read once by walking the chunk list of the
+ * RIFF header: only the 8 byte header of every chunk is read, the
+ * "fmt " chunk is parsed and the walk stops at the "data" chunk, so
+ * bytes inside other chunks (LIST, INFO...) are never mistaken for a
+ * chunk and the audio data is never scanned.
+ */
+public final class WavFormat {
+
+  /** The Constant RIFF_ID, "RIFF" in little-endian. */
+  private final static int RIFF_ID = 0x46464952;
+
+  /** The Constant WAVE_ID, "WAVE" in little-endian. */
+  private final static int WAVE_ID = 0x45564157;
+
+  /** The Constant FMT_ID, "fmt " in little-endian. */
+  private final static int FMT_ID = 0x20746d66;
+
+  /** The Constant DATA_ID, "data" in little-endian. */
+  private final static int DATA_ID = 0x61746164;
+
+  /** The Constant RIFF_HEADER_LENGTH, "RIFF", size and "WAVE". */
+  private final static int RIFF_HEADER_LENGTH = 12;
+
+  /** The Constant CHUNK_HEADER_LENGTH, id and size. */
+  private final static int CHUNK_HEADER_LENGTH = 8;
+
+  /** The Constant FMT_LENGTH, the shortest "fmt " chunk read. */
+  private final static int FMT_LENGTH = 16;
+
+  /** The Constant EXTENSIBLE_FMT_LENGTH. */
+  private final static int EXTENSIBLE_FMT_LENGTH = 40;
+
+  /** The Constant SUB_FORMAT_OFFSET of extensible "fmt " chunks. */
+  private final static int SUB_FORMAT_OFFSET = 24;
+
+  /** The Constant UNKNOWN_SIZE written by some streaming encoders. */
+  private final static long UNKNOWN_SIZE = 0xFFFFFFFFL;
+
+  /** The format tag, the sub format of extensible headers. */
+  private final int audioFormat;
+
+  /** The channels. */
+  private final int channels;
+
+  /** The sample rate. */
+  private final int sampleRate;
+
+  /** The bytes per second. */
+  private final int byteRate;
+
+  /** The bytes of one sample of all channels. */
+  private final int blockAlign;
+
+  /** The bits per sample. */
+  private final int bitsPerSample;
+
+  /** The offset of the data in the file, -1 without data chunk. */
+  private final long dataOffset;
+
+  /** The length of the data. */
+  private final long dataLength;
+
+  /**
+   * Instantiates a new wav format.
+   * 
+   * @param fmt the body of the "fmt " chunk, in little-endian order
+   * @param dataOffset the offset of the data, -1 without data chunk
+   * @param dataLength the length of the data
+   */
+  private WavFormat(ByteBuffer fmt, long dataOffset, long dataLength) {
+    int tag = fmt.getShort(0) & 0xffff;
+    if (tag == SampleDecoder.FORMAT_EXTENSIBLE
+        && fmt.limit() >= EXTENSIBLE_FMT_LENGTH) {
+      // extensible headers carry the actual tag at the start of
+      // their sub format
+      tag = fmt.getShort(SUB_FORMAT_OFFSET) & 0xffff;
+    }
+    this.audioFormat = tag;
+    this.channels = fmt.getShort(2) & 0xffff;
+    this.sampleRate = fmt.getInt(4);
+    this.byteRate = fmt.getInt(8);
+    this.blockAlign = fmt.getShort(12) & 0xffff;
+    this.bitsPerSample = fmt.getShort(14) & 0xffff;
+    this.dataOffset = dataOffset;
+    this.dataLength = dataLength;
+  }
+
+  /**
+   * Reads the format of a wav file in memory.
+   * 
+   * @param file the content of the file, or of its header
+   * @return the format, or null if it is not a RIFF WAVE file with a
+   *         "fmt " chunk
+   */
+  public static WavFormat parse(ByteBuffer file) {
+    try {
+      return walk(null, file, file.limit());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the format of a wav file with positional reads, leaving the
+   * position of the channel unchanged.
+   * 
+   * @param channel the channel of the file
+   * @return the format, or null if it is not a RIFF WAVE file with a
+   *         "fmt " chunk
+   * @throws IOException Signals that an I/O exception has
+   *           occurred.
+   */
+  public static WavFormat read(FileChannel channel) throws IOException {
+    return walk(channel, null, channel.size());
+  }
+
+  /**
+   * Walks the chunk list of a file, from a channel or from memory.
+   * 
+   * @param channel the channel of the file, null if in memory
+   * @param file the content of the file, null if read from channel
+   * @param size the size of the file
+   * @return the format, or null if it is not a RIFF WAVE file with a
+   *         "fmt " chunk
+   * @throws IOException Signals that an I/O exception has
+   *           occurred.
+   */
+  private static WavFormat walk(FileChannel channel, ByteBuffer file,
+      long size) throws IOException {
+    ByteBuffer riff = read(channel, file, 0, RIFF_HEADER_LENGTH);
+    if (riff == null || riff.getInt(0) != RIFF_ID
+        || riff.getInt(8) != WAVE_ID) {
+      return null;
+    }
+    ByteBuffer fmt = null;
+    long dataOffset = -1;
+    long dataLength = 0;
+    long position = RIFF_HEADER_LENGTH;
+    while (position + CHUNK_HEADER_LENGTH <= size) {
+      ByteBuffer chunk =
+          read(channel, file, position, CHUNK_HEADER_LENGTH);
+      if (chunk == null) break;
+      int id = chunk.getInt(0);
+      long chunkSize = chunk.getInt(4) & 0xffffffffL;
+      long body = position + CHUNK_HEADER_LENGTH;
+      if (id == FMT_ID && chunkSize >= FMT_LENGTH) {
+        fmt =
+            read(channel, file, body,
+                (int) Math.min(chunkSize, EXTENSIBLE_FMT_LENGTH));
+      } else if (id == DATA_ID) {
+        dataOffset = body;
+        // a missing or oversized length means the data runs to
+        // the end of the file
+        dataLength =
+            (chunkSize == UNKNOWN_SIZE || chunkSize > size - body)
+                ? size - body : chunkSize;
+        // the rest of the file is audio, unless the format is
+        // still missing after it
+        if (fmt != null || dataLength == size - body) break;
+      }
+      // chunks are padded to an even length
+      position = body + chunkSize + (chunkSize & 1);
+    }
+    if (fmt == null) return null;
+    return new WavFormat(fmt, dataOffset, dataLength);
+  }
+
+  /**
+   * Reads bytes of a file from a channel or from memory.
+   * 
+   * @param channel the channel of the file, null if in memory
+   * @param file the content of the file, null if read from channel
+   * @param position the position of the bytes in the file
+   * @param length the number of bytes
+   * @return the bytes in little-endian order, or null if the file
+   *         ends before
+   * @throws IOException Signals that an I/O exception has
+   *           occurred.
+   */
+  private static ByteBuffer read(FileChannel channel, ByteBuffer file,
+      long position, int length) throws IOException {
+    ByteBuffer bytes;
+    if (channel == null) {
+      if (position + length > file.limit()) return null;
+      bytes = file.duplicate();
+      bytes.position((int) position);
+      bytes.limit((int) position + length);
+      bytes = bytes.slice();
+    } else {
+      bytes = ByteBuffer.allocate(length);
+      while (bytes.hasRemaining()) {
+        if (channel.read(bytes, position + bytes.position()) < 0) {
+          return null;
+        }
+      }
+    }
+    return bytes.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Gets the format tag, the sub format of extensible headers.
+   * 
+   * @return the audio format
+   */
+  public int getAudioFormat() {
+    return audioFormat;
+  }
+
+  /**
+   * Gets the channels.
+   * 
+   * @return the channels
+   */
+  public int getChannels() {
+    return channels;
+  }
+
+  /**
+   * Gets the sample rate.
+   * 
+   * @return the sample rate
+   */
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * Gets the bytes per second.
+   * 
+   * @return the byte rate
+   */
+  public int getByteRate() {
+    return byteRate;
+  }
+
+  /**
+   * Gets the bytes of one sample of all channels.
+   * 
+   * @return the block align
+   */
+  public int getBlockAlign() {
+    return blockAlign;
+  }
+
+  /**
+   * Gets the bits per sample.
+   * 
+   * @return the bits per sample
+   */
+  public int getBitsPerSample() {
+    return bitsPerSample;
+  }
+
+  /**
+   * Checks for a data chunk.
+   * 
+   * @return true, if the file has a data chunk
+   */
+  public boolean hasData() {
+    return dataOffset >= 0;
+  }
+
+  /**
+   * Gets the offset of the data in the file.
+   * 
+   * @return the data offset, -1 without data chunk
+   */
+  public long getDataOffset() {
+    return dataOffset;
+  }
+
+  /**
+   * Gets the length of the data.
+   * 
+   * @return the data length
+   */
+  public long getDataLength() {
+    return dataLength;
+  }
+}
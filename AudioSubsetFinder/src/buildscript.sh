@@ -1,5 +1,11 @@
 #!/bin/bash
-javac *.java
+# ./buildscript.sh --simd also builds the Vector API distance kernel,
+# used when run with java_args="--add-modules jdk.incubator.vector"
+if [ "$1" = "--simd" ]; then
+  javac --add-modules jdk.incubator.vector -d . *.java simd/*.java
+else
+  javac *.java
+fi
 jar cfvm arc5500.jar manifest.txt *.class
 chmod +x arc5500.jar
 cat stub.sh arc5500.jar > arc5500 && chmod +x arc5500
@@ -0,0 +1,76 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The Class VectorDistanceKernel sums the squared errors with the
+ * Vector API, as many values at a time as the widest double vector of
+ * the processor holds. The integer values are loaded in a vector of the
+ * same lane count, converted, weighted and accumulated with fused
+ * multiply-adds; the values after the last whole vector are summed one
+ * at a time. The lanes are added at the end, so the sum may differ
+ * from the scalar one in its last bits.
+ *
+ * Only built by buildscript.sh --simd, it needs the incubator module at
+ * compile and run time, see {@link DistanceKernel#forSettings()}.
+ */
+public class VectorDistanceKernel extends DistanceKernel {
+
+  /** The Constant DOUBLES, the preferred species of doubles. */
+  private static final VectorSpecies<Double> DOUBLES =
+      DoubleVector.SPECIES_PREFERRED;
+
+  /** The Constant INTS, the species of ints with as many lanes. */
+  private static final VectorSpecies<Integer> INTS = VectorSpecies.of(
+      int.class, VectorShape.forBitSize(DOUBLES.length() * Integer.SIZE));
+
+  /**
+   * Gets the name of the kernel.
+   *
+   * @return the name and the lanes of its vectors
+   */
+  public String getName() {
+    return "vector-" + DOUBLES.length();
+  }
+
+  /**
+   * Sums the squared errors between two runs of fingerprint values.
+   *
+   * @param longer the flattened longer fingerprint
+   * @param longerOffset the first value of longer compared
+   * @param shorter the flattened shorter fingerprint
+   * @param shorterOffset the first value of shorter compared
+   * @param weights the inverse weights of the values, from index 0
+   * @param length the number of values, at most the weights
+   * @param sum the sum of the squared errors before these values
+   * @return the sum of the squared errors
+   */
+  public double getSquaredError(int[] longer, int longerOffset,
+      int[] shorter, int shorterOffset, double[] weights, int length,
+      double sum) {
+    DoubleVector sums = DoubleVector.zero(DOUBLES);
+    int i = 0;
+    for (int bound = DOUBLES.loopBound(length); i < bound; i +=
+        DOUBLES.length()) {
+      IntVector delta =
+          IntVector.fromArray(INTS, longer, longerOffset + i).abs().sub(
+              IntVector.fromArray(INTS, shorter, shorterOffset + i).abs());
+      DoubleVector error =
+          ((DoubleVector) delta.convertShape(VectorOperators.I2D,
+              DOUBLES, 0)).mul(DoubleVector.fromArray(DOUBLES, weights,
+              i));
+      sums = error.fma(error, sums);
+    }
+    sum += sums.reduceLanes(VectorOperators.ADD);
+    double error = 0.0;
+    for (; i < length; i++) {
+      error =
+          (Math.abs(longer[longerOffset + i]) - Math
+              .abs(shorter[shorterOffset + i])) * weights[i];
+      sum += error * error;
+    }
+    return sum;
+  }
+}